@@ -1,23 +1,45 @@
 package ee.ria.govsso.inproxy.actuator.health;
 
+import ee.ria.govsso.inproxy.configuration.properties.AdminConfigurationProperties;
 import ee.ria.govsso.inproxy.service.TokenRequestAllowedIpAddressesService;
+import ee.ria.govsso.inproxy.service.ipaddress.AllowedIpAddressSnapshot;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.boot.actuate.health.Health;
 import org.springframework.boot.actuate.health.HealthIndicator;
 import org.springframework.stereotype.Component;
 
+import java.time.Duration;
+import java.time.Instant;
+
 @Slf4j
 @Component
 @RequiredArgsConstructor
 public class AdminHealthIndicator implements HealthIndicator {
 
     private final TokenRequestAllowedIpAddressesService tokenRequestAllowedIpAddressesService;
+    private final AdminConfigurationProperties adminConfigurationProperties;
 
+    // After failed requests to the admin service, the indicator stays UP until the list of allowed IP-address ranges
+    // gets older than the configured maximum staleness.
     @Override
     public Health health() {
-        return tokenRequestAllowedIpAddressesService.isLastRequestToAdminSuccessful()
-                ? Health.up().build()
-                : Health.down().build();
+        boolean lastRequestSuccessful = tokenRequestAllowedIpAddressesService.isLastRequestToAdminSuccessful();
+        AllowedIpAddressSnapshot snapshot = tokenRequestAllowedIpAddressesService.getSnapshot();
+        Duration age = snapshot.getAge(Instant.now());
+        boolean stale = age == null
+                || age.toMillis() > adminConfigurationProperties.tokenRequestAllowedIpAddressesMaxStalenessInMilliseconds();
+
+        Health.Builder health = lastRequestSuccessful || !stale ? Health.up() : Health.down();
+        health.withDetail("lastRequestSuccessful", lastRequestSuccessful)
+                .withDetail("generation", snapshot.generation())
+                .withDetail("source", snapshot.source())
+                .withDetail("clients", snapshot.index().clientCount())
+                .withDetail("ranges", snapshot.index().rangeCount());
+        if (snapshot.fetchedAt() != null) {
+            health.withDetail("fetchedAt", snapshot.fetchedAt())
+                    .withDetail("ageInSeconds", age.toSeconds());
+        }
+        return health.build();
     }
 }
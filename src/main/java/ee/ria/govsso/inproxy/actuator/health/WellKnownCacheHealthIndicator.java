@@ -0,0 +1,33 @@
+package ee.ria.govsso.inproxy.actuator.health;
+
+import ee.ria.govsso.inproxy.wellknown.cache.WellKnownResponseCacheRegistry;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+// Only registered if cached well-known responses are warmed up on startup. Include it in the readiness group for
+// keeping new instances out of service until responses loaded from file have been requested again from upstream.
+@Component
+@ConditionalOnProperty(
+        prefix = "tara-govsso-inproxy.well-known-cache",
+        name = "warm-up-on-startup",
+        havingValue = "true")
+@RequiredArgsConstructor
+public class WellKnownCacheHealthIndicator implements HealthIndicator {
+
+    private final WellKnownResponseCacheRegistry registry;
+
+    @Override
+    public Health health() {
+        Map<String, Boolean> warmedUp = new TreeMap<>();
+        registry.getCacheManagers()
+                .forEach((routeId, cacheManager) -> warmedUp.put(routeId, cacheManager.isWarmedUp()));
+        Health.Builder health = warmedUp.containsValue(false) ? Health.outOfService() : Health.up();
+        return health.withDetail("warmedUp", warmedUp).build();
+    }
+}
@@ -0,0 +1,23 @@
+package ee.ria.govsso.inproxy.actuator.tokenrequest;
+
+import ee.ria.govsso.inproxy.service.TokenRequestSourceBlockService;
+import ee.ria.govsso.inproxy.service.TokenRequestSourceBlockService.Block;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+@Component
+@Endpoint(id = "tokenrequestsourceblocks")
+@RequiredArgsConstructor
+public class TokenRequestSourceBlocksEndpoint {
+
+    private final TokenRequestSourceBlockService tokenRequestSourceBlockService;
+
+    @ReadOperation
+    public List<Block> blocks() {
+        return tokenRequestSourceBlockService.getBlocks();
+    }
+}
@@ -0,0 +1,60 @@
+package ee.ria.govsso.inproxy.actuator.wellknowncache;
+
+import ee.ria.govsso.inproxy.wellknown.cache.WellKnownCacheEntry;
+import ee.ria.govsso.inproxy.wellknown.cache.WellKnownResponseCacheManager;
+import ee.ria.govsso.inproxy.wellknown.cache.WellKnownResponseCacheRegistry;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Responses cached by the WellKnownResponseCache filter per route id. Operations on an unknown route respond with 404.
+@Component
+@Endpoint(id = "wellknowncache")
+@RequiredArgsConstructor
+public class WellKnownCacheEndpoint {
+
+    private final WellKnownResponseCacheRegistry registry;
+
+    @ReadOperation
+    public Map<String, List<WellKnownCacheEntry>> entries() {
+        Map<String, List<WellKnownCacheEntry>> entries = new TreeMap<>();
+        registry.getCacheManagers().forEach((routeId, cacheManager) -> entries.put(routeId, cacheManager.getEntries()));
+        return entries;
+    }
+
+    @ReadOperation
+    public List<WellKnownCacheEntry> routeEntries(@Selector String route) {
+        return registry.getCacheManager(route)
+                .map(WellKnownResponseCacheManager::getEntries)
+                .orElse(null);
+    }
+
+    // Purges all cached responses of the route if key is not provided
+    @DeleteOperation
+    public Result purge(@Selector String route, @Nullable String key) {
+        return registry.getCacheManager(route)
+                .map(cacheManager -> new Result(cacheManager.purge(key)))
+                .orElse(null);
+    }
+
+    // Requests all cached responses of the route again from upstream if key is not provided
+    @WriteOperation
+    public Mono<Result> warm(@Selector String route, @Nullable String key) {
+        return Mono.justOrEmpty(registry.getCacheManager(route))
+                .flatMap(cacheManager -> cacheManager.warm(key))
+                .map(Result::new);
+    }
+
+    public record Result(int entries) {
+    }
+}
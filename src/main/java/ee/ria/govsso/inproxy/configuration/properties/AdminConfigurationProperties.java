@@ -19,6 +19,16 @@ public record AdminConfigurationProperties(
         String tokenRequestAllowedIpAddressesStoragePath,
         @Min(value = 1000) @DefaultValue("60000")
         int tokenRequestAllowedIpAddressesRefreshIntervalInMilliseconds,
+        @Min(value = 100) @DefaultValue("1000")
+        int tokenRequestAllowedIpAddressesRefreshMinBackoffInMilliseconds,
+        @Min(value = 100) @DefaultValue("10000")
+        int tokenRequestAllowedIpAddressesRequestTimeoutInMilliseconds,
+        @Min(value = 0) @DefaultValue("300000")
+        long tokenRequestAllowedIpAddressesMaxStalenessInMilliseconds,
+        @Min(value = 0) @DefaultValue("10000")
+        int tokenRequestAllowedIpAddressesDecisionCacheMaxSize,
+        @DefaultValue("false")
+        boolean tokenRequestAllowedIpAddressesChangeFeedEnabled,
         AdminTlsConfigurationProperties tls) {
 
     @Validated
@@ -0,0 +1,38 @@
+package ee.ria.govsso.inproxy.configuration.properties;
+
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.validation.annotation.Validated;
+
+import java.time.Duration;
+import java.util.Map;
+
+@Validated
+@ConfigurationProperties(prefix = "tara-govsso-inproxy.token-request-rate-limit")
+public record TokenRequestRateLimitConfigurationProperties(
+        @Valid @NotNull @DefaultValue
+        Limit defaultLimit,
+        Map<String, @Valid @NotNull Limit> clients,
+        @Min(value = 1) @DefaultValue("10000")
+        int maxClients) {
+
+    public TokenRequestRateLimitConfigurationProperties {
+        clients = clients == null ? Map.of() : Map.copyOf(clients);
+    }
+
+    public Limit getLimit(String clientId) {
+        return clients.getOrDefault(clientId, defaultLimit);
+    }
+
+    public record Limit(
+            @Min(value = 1) @DefaultValue("20")
+            int burstCapacity,
+            @Min(value = 1) @DefaultValue("10")
+            int replenishRate,
+            @NotNull @DefaultValue("1s")
+            Duration replenishPeriod) {
+    }
+}
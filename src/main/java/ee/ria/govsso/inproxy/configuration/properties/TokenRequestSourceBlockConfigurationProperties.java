@@ -0,0 +1,22 @@
+package ee.ria.govsso.inproxy.configuration.properties;
+
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.validation.annotation.Validated;
+
+import java.time.Duration;
+
+@Validated
+@ConfigurationProperties(prefix = "tara-govsso-inproxy.token-request-source-block")
+public record TokenRequestSourceBlockConfigurationProperties(
+        @Min(value = 1) @DefaultValue("100")
+        int threshold,
+        @NotNull @DefaultValue("1m")
+        Duration window,
+        @NotNull @DefaultValue("10m")
+        Duration blockDuration,
+        @Min(value = 1) @DefaultValue("10000")
+        int maxSources) {
+}
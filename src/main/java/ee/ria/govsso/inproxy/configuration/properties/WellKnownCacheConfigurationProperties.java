@@ -0,0 +1,11 @@
+package ee.ria.govsso.inproxy.configuration.properties;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.validation.annotation.Validated;
+
+@Validated
+@ConfigurationProperties(prefix = "tara-govsso-inproxy.well-known-cache")
+public record WellKnownCacheConfigurationProperties(
+        String storagePath,
+        boolean warmUpOnStartup) {
+}
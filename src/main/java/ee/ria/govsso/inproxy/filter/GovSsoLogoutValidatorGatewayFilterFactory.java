@@ -5,19 +5,13 @@ import com.nimbusds.jwt.SignedJWT;
 import ee.ria.govsso.inproxy.configuration.properties.GovSsoConfigurationProperties;
 import ee.ria.govsso.inproxy.exception.HydraStyleException;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.hc.core5.net.URIBuilder;
 import org.springframework.cloud.gateway.filter.GatewayFilter;
 import org.springframework.cloud.gateway.filter.factory.AbstractGatewayFilterFactory;
-import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
 import org.springframework.context.annotation.Profile;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
-import org.springframework.http.HttpStatus;
-import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.stereotype.Component;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.server.ServerWebExchange;
-import reactor.core.publisher.Mono;
 
 import java.text.ParseException;
 import java.util.List;
@@ -28,10 +22,13 @@ import java.util.List;
 public class GovSsoLogoutValidatorGatewayFilterFactory extends AbstractGatewayFilterFactory<GovSsoLogoutValidatorGatewayFilterFactory.Config> {
 
     private final GovSsoConfigurationProperties govSsoConfigurationProperties;
+    private final HydraStyleErrorResponseWriter errorResponseWriter;
 
-    public GovSsoLogoutValidatorGatewayFilterFactory(GovSsoConfigurationProperties govSsoConfigurationProperties) {
+    public GovSsoLogoutValidatorGatewayFilterFactory(GovSsoConfigurationProperties govSsoConfigurationProperties,
+                                                     HydraStyleErrorResponseWriter errorResponseWriter) {
         super(Config.class);
         this.govSsoConfigurationProperties = govSsoConfigurationProperties;
+        this.errorResponseWriter = errorResponseWriter;
     }
 
     @Override
@@ -41,7 +38,7 @@ public class GovSsoLogoutValidatorGatewayFilterFactory extends AbstractGatewayFi
                 validateIdTokenHintQueryParam(exchange);
                 return chain.filter(exchange);
             } catch (HydraStyleException e) {
-                return createErrorResponse(exchange, e);
+                return errorResponseWriter.writeRedirectError(exchange, e);
             }
         };
     }
@@ -112,22 +109,6 @@ public class GovSsoLogoutValidatorGatewayFilterFactory extends AbstractGatewayFi
                 .contains(clientId);
     }
 
-    private Mono<Void> createErrorResponse(ServerWebExchange exchange, HydraStyleException e) {
-        String location = new URIBuilder()
-                .appendPathSegments("error", "oidc")
-                .addParameter("error", e.getError())
-                .addParameter("error_description", e.getErrorDescription())
-                .toString();
-        ServerHttpResponse response = exchange.getResponse();
-        response.getHeaders().clear();
-        response.getHeaders().add(HttpHeaders.LOCATION, location);
-        response.getHeaders().add(HttpHeaders.CACHE_CONTROL, "private, no-cache, no-store, must-revalidate");
-        ServerWebExchangeUtils.setResponseStatus(exchange, HttpStatus.FOUND);
-        ServerWebExchangeUtils.setAlreadyRouted(exchange);
-
-        return response.setComplete();
-    }
-
     public static class Config {
     }
 }
@@ -0,0 +1,132 @@
+package ee.ria.govsso.inproxy.filter;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import ee.ria.govsso.inproxy.exception.HydraStyleException;
+import org.apache.hc.core5.net.URIBuilder;
+import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+// Writes Hydra-style error responses, either as a JSON body or as a redirect to the error page. Responses for fixed
+// (error, error_description) pairs are serialized once and reused, only the dynamic parts of unauthorized_client
+// responses are encoded per request.
+@Component
+public class HydraStyleErrorResponseWriter {
+
+    public static final String UNAUTHORIZED_CLIENT = "unauthorized_client";
+
+    // Guards against unbounded growth if error descriptions containing request data are ever passed in.
+    private static final int MAX_CACHED_ERRORS = 64;
+    private static final byte[] UNAUTHORIZED_CLIENT_PREFIX =
+            ("{\"error\":\"" + UNAUTHORIZED_CLIENT + "\",\"error_description\":\"IP address ")
+                    .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] UNAUTHORIZED_CLIENT_INFIX =
+            " is not whitelisted for client_id \\\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] UNAUTHORIZED_CLIENT_SUFFIX = "\\\"\"}".getBytes(StandardCharsets.UTF_8);
+
+    private final Map<ErrorKey, ByteBuffer> jsonBodies = new ConcurrentHashMap<>();
+    private final Map<ErrorKey, String> redirectLocations = new ConcurrentHashMap<>();
+
+    public Mono<Void> writeJsonError(ServerWebExchange exchange, HydraStyleException e) {
+        return writeJsonError(exchange, e.getStatusCode(), e.getError(), e.getErrorDescription());
+    }
+
+    public Mono<Void> writeJsonError(ServerWebExchange exchange,
+                                     HttpStatus status,
+                                     String error,
+                                     String errorDescription) {
+        return writeJsonError(exchange, status, error, errorDescription, HttpHeaders.EMPTY);
+    }
+
+    public Mono<Void> writeJsonError(ServerWebExchange exchange,
+                                     HttpStatus status,
+                                     String error,
+                                     String errorDescription,
+                                     HttpHeaders additionalHeaders) {
+        ByteBuffer body = getCached(jsonBodies, new ErrorKey(error, errorDescription),
+                key -> ByteBuffer.wrap(toJson(key.error(), key.errorDescription())).asReadOnlyBuffer());
+        return writeJson(exchange, status, body.duplicate(), additionalHeaders);
+    }
+
+    // Equivalent to a JSON error with description 'IP address <ip> is not whitelisted for client_id "<clientId>"'.
+    public Mono<Void> writeUnauthorizedClientError(ServerWebExchange exchange, String ipAddress, String clientId) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(160);
+        body.writeBytes(UNAUTHORIZED_CLIENT_PREFIX);
+        body.writeBytes(JsonStringEncoder.getInstance().quoteAsUTF8(String.valueOf(ipAddress)));
+        body.writeBytes(UNAUTHORIZED_CLIENT_INFIX);
+        body.writeBytes(JsonStringEncoder.getInstance().quoteAsUTF8(String.valueOf(clientId)));
+        body.writeBytes(UNAUTHORIZED_CLIENT_SUFFIX);
+        return writeJson(exchange, HttpStatus.BAD_REQUEST, ByteBuffer.wrap(body.toByteArray()), HttpHeaders.EMPTY);
+    }
+
+    public Mono<Void> writeRedirectError(ServerWebExchange exchange, HydraStyleException e) {
+        String location = getCached(redirectLocations, new ErrorKey(e.getError(), e.getErrorDescription()),
+                key -> new URIBuilder()
+                        .appendPathSegments("error", "oidc")
+                        .addParameter("error", key.error())
+                        .addParameter("error_description", key.errorDescription())
+                        .toString());
+        ServerHttpResponse response = exchange.getResponse();
+        response.getHeaders().clear();
+        response.getHeaders().add(HttpHeaders.LOCATION, location);
+        response.getHeaders().add(HttpHeaders.CACHE_CONTROL, "private, no-cache, no-store, must-revalidate");
+        ServerWebExchangeUtils.setResponseStatus(exchange, HttpStatus.FOUND);
+        ServerWebExchangeUtils.setAlreadyRouted(exchange);
+
+        return response.setComplete();
+    }
+
+    private Mono<Void> writeJson(ServerWebExchange exchange,
+                                 HttpStatus status,
+                                 ByteBuffer body,
+                                 HttpHeaders additionalHeaders) {
+        ServerHttpResponse response = exchange.getResponse();
+        response.getHeaders().clear();
+        response.getHeaders().add(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE);
+        response.getHeaders().add(HttpHeaders.CACHE_CONTROL, "no-store");
+        response.getHeaders().add(HttpHeaders.PRAGMA, "no-cache");
+        response.getHeaders().addAll(additionalHeaders);
+        response.getHeaders().setContentLength(body.remaining());
+        ServerWebExchangeUtils.setResponseStatus(exchange, status);
+        ServerWebExchangeUtils.setAlreadyRouted(exchange);
+
+        return response.writeWith(Mono.fromSupplier(() -> response.bufferFactory().wrap(body)));
+    }
+
+    private static <T> T getCached(Map<ErrorKey, T> cache, ErrorKey key, Function<ErrorKey, T> factory) {
+        T value = cache.get(key);
+        if (value != null) {
+            return value;
+        }
+        if (cache.size() >= MAX_CACHED_ERRORS) {
+            return factory.apply(key);
+        }
+        return cache.computeIfAbsent(key, factory);
+    }
+
+    private static byte[] toJson(String error, String errorDescription) {
+        JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.writeBytes("{\"error\":\"".getBytes(StandardCharsets.UTF_8));
+        body.writeBytes(encoder.quoteAsUTF8(error));
+        body.writeBytes("\",\"error_description\":\"".getBytes(StandardCharsets.UTF_8));
+        body.writeBytes(encoder.quoteAsUTF8(errorDescription));
+        body.writeBytes("\"}".getBytes(StandardCharsets.UTF_8));
+        return body.toByteArray();
+    }
+
+    private record ErrorKey(String error, String errorDescription) {
+    }
+}
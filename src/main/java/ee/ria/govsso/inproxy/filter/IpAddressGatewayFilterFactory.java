@@ -1,30 +1,33 @@
 package ee.ria.govsso.inproxy.filter;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import ee.ria.govsso.inproxy.exception.HydraStyleException;
+import ee.ria.govsso.inproxy.logging.TokenRequestIpAddressViolationLogger;
 import ee.ria.govsso.inproxy.service.TokenRequestAllowedIpAddressesService;
+import ee.ria.govsso.inproxy.service.TokenRequestSourceBlockService;
+import inet.ipaddr.IPAddress;
+import inet.ipaddr.IPAddressString;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cloud.gateway.filter.GatewayFilter;
 import org.springframework.cloud.gateway.filter.factory.AbstractGatewayFilterFactory;
+import org.springframework.cloud.gateway.support.HasRouteId;
 import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
-import org.springframework.core.ResolvableType;
-import org.springframework.core.codec.Hints;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
-import org.springframework.http.codec.json.Jackson2JsonEncoder;
-import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.stereotype.Component;
 import org.springframework.web.server.ServerWebExchange;
-import reactor.core.publisher.Mono;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.Base64;
-import java.util.HashMap;
-import java.util.Map;
 
 @Slf4j
 @Component
@@ -33,27 +36,40 @@ public class IpAddressGatewayFilterFactory extends AbstractGatewayFilterFactory<
     public static final String AUTHENTICATION_SCHEME_BASIC = "basic";
     public static final String REQUEST_BODY_FORM_ELEMENT_KEY = "client_id";
     public static final String CLIENT_ID_ATTR = "clientIdAttr";
+    private static final String HEADER_CLIENT_ID_ATTR = "headerClientIdAttr";
 
     private final TokenRequestAllowedIpAddressesService tokenRequestAllowedIpAddressesService;
-    private final Jackson2JsonEncoder jackson2JsonEncoder;
+    private final TokenRequestSourceBlockService tokenRequestSourceBlockService;
+    private final HydraStyleErrorResponseWriter errorResponseWriter;
+    private final TokenRequestIpAddressViolationLogger ipAddressViolationLogger;
+    private final MeterRegistry meterRegistry;
 
     @Value("${tara-govsso-inproxy.token-request-block-ip-addresses}")
     private boolean ipBlockEnabled;
 
 
     public IpAddressGatewayFilterFactory(TokenRequestAllowedIpAddressesService tokenRequestAllowedIpAddressesService,
-                                         ObjectMapper objectMapper) {
+                                         TokenRequestSourceBlockService tokenRequestSourceBlockService,
+                                         HydraStyleErrorResponseWriter errorResponseWriter,
+                                         TokenRequestIpAddressViolationLogger ipAddressViolationLogger,
+                                         MeterRegistry meterRegistry) {
         super(Config.class);
         this.tokenRequestAllowedIpAddressesService = tokenRequestAllowedIpAddressesService;
-        jackson2JsonEncoder = new Jackson2JsonEncoder(objectMapper);
+        this.tokenRequestSourceBlockService = tokenRequestSourceBlockService;
+        this.errorResponseWriter = errorResponseWriter;
+        this.ipAddressViolationLogger = ipAddressViolationLogger;
+        this.meterRegistry = meterRegistry;
     }
 
     @Override
     public GatewayFilter apply(Config config) {
+        Counter blockRejectionCounter =
+                TokenRequestSourceBlockGatewayFilterFactory.rejectionCounter(meterRegistry, config.getRouteId());
         return (exchange, chain) -> {
             String clientId = null;
             try {
-                String requestIpAddress = exchange.getRequest().getRemoteAddress().getAddress().getHostAddress();
+                InetSocketAddress remoteAddress = exchange.getRequest().getRemoteAddress();
+                InetAddress address = getInetAddress(remoteAddress);
                 clientId = getClientId(exchange);
                 if (clientId == null) {
                     throw new HydraStyleException(
@@ -63,49 +79,55 @@ public class IpAddressGatewayFilterFactory extends AbstractGatewayFilterFactory<
                     );
                 }
 
-                boolean isAllowed = tokenRequestAllowedIpAddressesService.isTokenRequestAllowed(clientId, requestIpAddress);
+                // Blocks of a client_id from the Authorization header have already been applied by
+                // TokenRequestSourceBlock, but the client_id from the request body is only known here.
+                Instant blockedUntil = tokenRequestSourceBlockService.getBlockedUntil(address, clientId);
+                if (blockedUntil != null) {
+                    blockRejectionCounter.increment();
+                    return TokenRequestSourceBlockGatewayFilterFactory.writeBlockedError(
+                            errorResponseWriter, exchange, blockedUntil);
+                }
+
+                boolean isAllowed = address != null
+                        && tokenRequestAllowedIpAddressesService.isTokenRequestAllowed(clientId, address);
                 if (!isAllowed) {
                     if (ipBlockEnabled) {
-                        throw new HydraStyleException(
-                            "unauthorized_client",
-                            String.format("IP address %s is not whitelisted for client_id \"%s\"", requestIpAddress, clientId),
-                            HttpStatus.BAD_REQUEST
-                        );
+                        tokenRequestSourceBlockService.recordUnauthorizedRequest(address, clientId);
+                        return errorResponseWriter.writeUnauthorizedClientError(
+                                exchange, getHostAddress(remoteAddress), clientId);
                     } else {
-                        log.warn(
-                            String.format("unauthorized_client - IP address %s is not whitelisted for client_id \"%s\", allowing request", requestIpAddress, clientId),
-                            exchange
-                        );
+                        ipAddressViolationLogger.record(clientId, remoteAddress);
                     }
                 }
 
                 exchange.getAttributes().put(CLIENT_ID_ATTR, clientId);
                 return chain.filter(exchange);
             } catch (HydraStyleException e) {
-                return createErrorResponse(exchange, e);
+                return errorResponseWriter.writeJsonError(exchange, e);
             }
         };
     }
 
-    private Mono<Void> createErrorResponse(ServerWebExchange exchange, HydraStyleException e) {
-        ServerHttpResponse response = exchange.getResponse();
-        response.getHeaders().clear();
-        response.getHeaders().add(HttpHeaders.CONTENT_TYPE, "application/json");
-        response.getHeaders().add(HttpHeaders.CACHE_CONTROL, "no-store");
-        response.getHeaders().add(HttpHeaders.PRAGMA, "no-cache");
-        ServerWebExchangeUtils.setResponseStatus(exchange, e.getStatusCode());
-        ServerWebExchangeUtils.setAlreadyRouted(exchange);
-
-        final Map<String, String> responseBody = Map.of(
-                "error", e.getError(),
-                "error_description", e.getErrorDescription());
+    // Unresolved addresses, such as those taken from forwarded headers, are parsed without a DNS lookup. Returns null if
+    // the address is not an IP address.
+    static InetAddress getInetAddress(InetSocketAddress remoteAddress) {
+        if (remoteAddress == null) {
+            return null;
+        }
+        InetAddress address = remoteAddress.getAddress();
+        if (address != null) {
+            return address;
+        }
+        IPAddress parsedAddress = new IPAddressString(remoteAddress.getHostString()).getAddress();
+        return parsedAddress == null ? null : parsedAddress.toInetAddress();
+    }
 
-        return response.writeWith(jackson2JsonEncoder.encode(Mono.just(responseBody),
-                response.bufferFactory(),
-                ResolvableType.forInstance(responseBody),
-                MediaType.APPLICATION_JSON,
-                Hints.from(Hints.LOG_PREFIX_HINT, exchange.getLogPrefix()))
-        );
+    private static String getHostAddress(InetSocketAddress remoteAddress) {
+        if (remoteAddress == null) {
+            return null;
+        }
+        InetAddress address = remoteAddress.getAddress();
+        return address == null ? remoteAddress.getHostString() : address.getHostAddress();
     }
 
     private String getClientId(ServerWebExchange exchange) {
@@ -125,7 +147,26 @@ public class IpAddressGatewayFilterFactory extends AbstractGatewayFilterFactory<
         return null;
     }
 
-    private String getClientIdFromHeader(ServerWebExchange exchange) {
+    // Decoded once per request, the result is shared by TokenRequestSourceBlock and IpAddress through an exchange
+    // attribute. Throws HydraStyleException every time it is called for an invalid Authorization header.
+    static String getClientIdFromHeader(ServerWebExchange exchange) {
+        HeaderClientId headerClientId = (HeaderClientId) exchange.getAttributes()
+                .computeIfAbsent(HEADER_CLIENT_ID_ATTR, name -> parseClientIdFromHeader(exchange));
+        if (headerClientId.error() != null) {
+            throw headerClientId.error();
+        }
+        return headerClientId.clientId();
+    }
+
+    private static HeaderClientId parseClientIdFromHeader(ServerWebExchange exchange) {
+        try {
+            return new HeaderClientId(getClientIdFromAuthorizationHeader(exchange), null);
+        } catch (HydraStyleException e) {
+            return new HeaderClientId(null, e);
+        }
+    }
+
+    private static String getClientIdFromAuthorizationHeader(ServerWebExchange exchange) {
         String authorization = exchange.getRequest().getHeaders().getFirst(HttpHeaders.AUTHORIZATION);
         if (authorization == null) {
             return null;
@@ -165,36 +206,99 @@ public class IpAddressGatewayFilterFactory extends AbstractGatewayFilterFactory<
     private String getClientIdFromBody(ServerWebExchange exchange) {
         // Request body must be application/x-www-form-urlencoded as per https://openid.net/specs/openid-connect-core-1_0.html#FormSerialization
         // "Content-Type: application/x-www-form-urlencoded" header is not checked.
-        String requestBody = exchange.getAttribute(ServerWebExchangeUtils.CACHED_REQUEST_BODY_ATTR);
+        DataBuffer requestBody = exchange.getAttribute(ServerWebExchangeUtils.CACHED_REQUEST_BODY_ATTR);
         if (requestBody != null) {
-            Map<String, String> requestBodyMap = parseFormToMap(requestBody);
-            if (requestBodyMap.containsKey(REQUEST_BODY_FORM_ELEMENT_KEY)) {
-                return requestBodyMap.get(REQUEST_BODY_FORM_ELEMENT_KEY);
-            }
+            return getFormParameter(requestBody, REQUEST_BODY_FORM_ELEMENT_KEY);
         }
         return null;
     }
 
-    private Map<String, String> parseFormToMap(String encodedString) {
-        Map<String, String> map = new HashMap<>();
+    // Scans the form in place and decodes only the value of the requested parameter, the last occurrence of which is
+    // returned. Pairs are separated by "&", whitespace around pairs is ignored and pairs without "=" are skipped. If
+    // decoding fails, the value found so far is returned.
+    private static String getFormParameter(DataBuffer form, String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int end = form.readPosition() + form.readableByteCount();
+        String value = null;
         try {
-            String[] pairs = org.springframework.util.StringUtils.tokenizeToStringArray(encodedString, "&");
-            for (String pair : pairs) {
-                String[] keyValue = pair.split("=", 2);
-                if (keyValue.length > 1) {
-                    // UTF-8 as per https://datatracker.ietf.org/doc/html/rfc6749#appendix-B
-                    String key = URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8);
-                    String value = URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8);
-                    map.put(key, value);
+            int pairStart = form.readPosition();
+            while (pairStart < end) {
+                int pairEnd = indexOf(form, (byte) '&', pairStart, end);
+                int start = pairStart;
+                int stop = pairEnd;
+                while (start < stop && isWhitespace(form.getByte(start))) {
+                    start++;
+                }
+                while (stop > start && isWhitespace(form.getByte(stop - 1))) {
+                    stop--;
+                }
+                int separator = indexOf(form, (byte) '=', start, stop);
+                if (separator < stop && isFormParameterName(form, start, separator, nameBytes, name)) {
+                    value = decodeFormComponent(form, separator + 1, stop);
                 }
+                pairStart = pairEnd + 1;
             }
-        } catch (IllegalArgumentException e){
+        } catch (IllegalArgumentException e) {
             log.info("Unable to decode URL-encoded string: ", e);
         }
+        return value;
+    }
+
+    private static boolean isFormParameterName(DataBuffer form, int start, int end, byte[] nameBytes, String name) {
+        if (indexOfEscape(form, start, end) < end) {
+            return name.equals(decodeFormComponent(form, start, end));
+        }
+        if (end - start != nameBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < nameBytes.length; i++) {
+            if (form.getByte(start + i) != nameBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        return map;
+    private static String decodeFormComponent(DataBuffer form, int start, int end) {
+        // UTF-8 as per https://datatracker.ietf.org/doc/html/rfc6749#appendix-B
+        String component = form.toString(start, end - start, StandardCharsets.UTF_8);
+        if (indexOfEscape(form, start, end) < end) {
+            return URLDecoder.decode(component, StandardCharsets.UTF_8);
+        }
+        return component;
+    }
+
+    private static int indexOfEscape(DataBuffer form, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = form.getByte(i);
+            if (b == '%' || b == '+') {
+                return i;
+            }
+        }
+        return end;
     }
 
-    public static class Config {
+    private static int indexOf(DataBuffer form, byte value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (form.getByte(i) == value) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    // Same characters as trimmed by String.trim()
+    private static boolean isWhitespace(byte b) {
+        return b >= 0 && b <= ' ';
+    }
+
+    private record HeaderClientId(String clientId, HydraStyleException error) {
+    }
+
+    @Data
+    public static class Config implements HasRouteId {
+
+        private String routeId;
+
     }
 }
@@ -0,0 +1,153 @@
+package ee.ria.govsso.inproxy.filter;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import ee.ria.govsso.inproxy.configuration.properties.TokenRequestRateLimitConfigurationProperties;
+import ee.ria.govsso.inproxy.configuration.properties.TokenRequestRateLimitConfigurationProperties.Limit;
+import ee.ria.govsso.inproxy.service.TokenRequestAllowedIpAddressesService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.cloud.gateway.filter.GatewayFilter;
+import org.springframework.cloud.gateway.filter.factory.AbstractGatewayFilterFactory;
+import org.springframework.cloud.gateway.support.HasRouteId;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ee.ria.govsso.inproxy.filter.IpAddressGatewayFilterFactory.CLIENT_ID_ATTR;
+
+// Limits the rate of token requests per client_id, must be placed after IpAddress which determines the client_id.
+// Each client has a token bucket of burstCapacity tokens, replenished by replenishRate tokens per replenishPeriod,
+// implemented as a generic cell rate algorithm: the time when the bucket would be full again is kept in a single
+// AtomicLong that is updated with compare-and-set. Buckets that have been idle long enough to be full again are
+// evicted, so that only recently active clients are kept in memory. Only clients in the allowed IP-address list are
+// limited, requests with any other client_id are left to IpAddress, which rejects them if token-request-block-ip-addresses
+// is enabled. Until the list has been loaded, no client is limited.
+@Slf4j
+@Component
+public class TokenRequestRateLimitGatewayFilterFactory
+        extends AbstractGatewayFilterFactory<TokenRequestRateLimitGatewayFilterFactory.Config> {
+
+    private static final String DECISIONS_METRIC = "token.request.rate.limit.decisions";
+    private static final String ERROR = "too_many_requests";
+    private static final String ERROR_DESCRIPTION = "Too many token requests, try again later.";
+
+    private final TokenRequestRateLimitConfigurationProperties properties;
+    private final TokenRequestAllowedIpAddressesService tokenRequestAllowedIpAddressesService;
+    private final HydraStyleErrorResponseWriter errorResponseWriter;
+    private final MeterRegistry meterRegistry;
+
+    public TokenRequestRateLimitGatewayFilterFactory(TokenRequestRateLimitConfigurationProperties properties,
+                                                     TokenRequestAllowedIpAddressesService tokenRequestAllowedIpAddressesService,
+                                                     HydraStyleErrorResponseWriter errorResponseWriter,
+                                                     MeterRegistry meterRegistry) {
+        super(Config.class);
+        this.properties = properties;
+        this.tokenRequestAllowedIpAddressesService = tokenRequestAllowedIpAddressesService;
+        this.errorResponseWriter = errorResponseWriter;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public GatewayFilter apply(Config config) {
+        Cache<String, TokenBucket> buckets = Caffeine.newBuilder()
+                .maximumSize(properties.maxClients())
+                .expireAfter(new TokenBucketExpiry())
+                .build();
+        Counter allowedCounter = decisionCounter(config.getRouteId(), "allowed");
+        Counter rejectedCounter = decisionCounter(config.getRouteId(), "rejected");
+        return (exchange, chain) -> {
+            String clientId = exchange.getAttribute(CLIENT_ID_ATTR);
+            if (clientId == null || !tokenRequestAllowedIpAddressesService.isKnownClient(clientId)) {
+                return chain.filter(exchange);
+            }
+            TokenBucket bucket = buckets.get(clientId, id -> new TokenBucket(properties.getLimit(id)));
+            long waitNanos = bucket.tryConsume(System.nanoTime());
+            if (waitNanos == 0) {
+                allowedCounter.increment();
+                return chain.filter(exchange);
+            }
+            rejectedCounter.increment();
+            log.debug("Token request rate limit exceeded for client_id \"{}\", rejecting request", clientId);
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(HttpHeaders.RETRY_AFTER, Long.toString(toRetryAfterSeconds(waitNanos)));
+            return errorResponseWriter.writeJsonError(exchange,
+                    HttpStatus.TOO_MANY_REQUESTS,
+                    ERROR,
+                    ERROR_DESCRIPTION,
+                    headers);
+        };
+    }
+
+    private Counter decisionCounter(String routeId, String decision) {
+        return Counter.builder(DECISIONS_METRIC)
+                .description("Number of token requests allowed or rejected by the per-client rate limit")
+                .tag("route", routeId != null ? routeId : "unknown")
+                .tag("decision", decision)
+                .register(meterRegistry);
+    }
+
+    private static long toRetryAfterSeconds(long waitNanos) {
+        return Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Data
+    public static class Config implements HasRouteId {
+
+        private String routeId;
+
+    }
+
+    private static class TokenBucket {
+
+        private final long emissionIntervalNanos;
+        private final long burstNanos;
+        // Time when the bucket would be full again if no more requests were made, in System.nanoTime() units.
+        private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+
+        TokenBucket(Limit limit) {
+            emissionIntervalNanos = Math.max(1, limit.replenishPeriod().toNanos() / limit.replenishRate());
+            burstNanos = emissionIntervalNanos * limit.burstCapacity();
+        }
+
+        // Returns 0 if a token was consumed, otherwise the time in nanoseconds until a token becomes available.
+        long tryConsume(long now) {
+            while (true) {
+                long current = fullAt.get();
+                long next = Math.max(current, now) + emissionIntervalNanos;
+                long waitNanos = next - now - burstNanos;
+                if (waitNanos > 0) {
+                    return waitNanos;
+                }
+                if (fullAt.compareAndSet(current, next)) {
+                    return 0;
+                }
+            }
+        }
+    }
+
+    // A bucket is at most burstNanos away from being full after any access, so it can be evicted after that.
+    private static class TokenBucketExpiry implements Expiry<String, TokenBucket> {
+
+        @Override
+        public long expireAfterCreate(String clientId, TokenBucket bucket, long currentTime) {
+            return bucket.burstNanos;
+        }
+
+        @Override
+        public long expireAfterUpdate(String clientId, TokenBucket bucket, long currentTime, long currentDuration) {
+            return bucket.burstNanos;
+        }
+
+        @Override
+        public long expireAfterRead(String clientId, TokenBucket bucket, long currentTime, long currentDuration) {
+            return bucket.burstNanos;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ee.ria.govsso.inproxy.filter;
+
+import ee.ria.govsso.inproxy.exception.HydraStyleException;
+import ee.ria.govsso.inproxy.service.TokenRequestSourceBlockService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Data;
+import org.springframework.cloud.gateway.filter.GatewayFilter;
+import org.springframework.cloud.gateway.filter.factory.AbstractGatewayFilterFactory;
+import org.springframework.cloud.gateway.support.HasRouteId;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.time.Instant;
+
+// Rejects token requests from sources blocked by TokenRequestSourceBlockService, must be placed before
+// CacheRequestBodyBytes so that blocked requests are rejected without reading their body. Therefore only the client_id
+// from the Authorization header is known here, blocks of a client_id from the request body are applied by IpAddress.
+@Component
+public class TokenRequestSourceBlockGatewayFilterFactory
+        extends AbstractGatewayFilterFactory<TokenRequestSourceBlockGatewayFilterFactory.Config> {
+
+    private static final String REJECTIONS_METRIC = "token.request.source.block.rejections";
+    private static final String ERROR = "too_many_requests";
+    private static final String ERROR_DESCRIPTION = "Too many unauthorized token requests, try again later.";
+
+    private final TokenRequestSourceBlockService tokenRequestSourceBlockService;
+    private final HydraStyleErrorResponseWriter errorResponseWriter;
+    private final MeterRegistry meterRegistry;
+
+    public TokenRequestSourceBlockGatewayFilterFactory(TokenRequestSourceBlockService tokenRequestSourceBlockService,
+                                                       HydraStyleErrorResponseWriter errorResponseWriter,
+                                                       MeterRegistry meterRegistry) {
+        super(Config.class);
+        this.tokenRequestSourceBlockService = tokenRequestSourceBlockService;
+        this.errorResponseWriter = errorResponseWriter;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public GatewayFilter apply(Config config) {
+        Counter rejectionCounter = rejectionCounter(meterRegistry, config.getRouteId());
+        return (exchange, chain) -> {
+            String clientId = getClientId(exchange);
+            if (clientId == null) {
+                return chain.filter(exchange);
+            }
+            InetAddress address = IpAddressGatewayFilterFactory.getInetAddress(exchange.getRequest().getRemoteAddress());
+            Instant blockedUntil = tokenRequestSourceBlockService.getBlockedUntil(address, clientId);
+            if (blockedUntil == null) {
+                return chain.filter(exchange);
+            }
+            rejectionCounter.increment();
+            return writeBlockedError(errorResponseWriter, exchange, blockedUntil);
+        };
+    }
+
+    static Counter rejectionCounter(MeterRegistry meterRegistry, String routeId) {
+        return Counter.builder(REJECTIONS_METRIC)
+                .description("Number of token requests rejected because their source is blocked")
+                .tag("route", routeId != null ? routeId : "unknown")
+                .register(meterRegistry);
+    }
+
+    static Mono<Void> writeBlockedError(HydraStyleErrorResponseWriter errorResponseWriter,
+                                        ServerWebExchange exchange,
+                                        Instant blockedUntil) {
+        HttpHeaders headers = new HttpHeaders();
+        long retryAfterSeconds = Math.max(1, Duration.between(Instant.now(), blockedUntil).toSeconds() + 1);
+        headers.set(HttpHeaders.RETRY_AFTER, Long.toString(retryAfterSeconds));
+        return errorResponseWriter.writeJsonError(exchange,
+                HttpStatus.TOO_MANY_REQUESTS,
+                ERROR,
+                ERROR_DESCRIPTION,
+                headers);
+    }
+
+    private static String getClientId(ServerWebExchange exchange) {
+        try {
+            return IpAddressGatewayFilterFactory.getClientIdFromHeader(exchange);
+        } catch (HydraStyleException e) {
+            // Rejected later by IpAddress
+            return null;
+        }
+    }
+
+    @Data
+    public static class Config implements HasRouteId {
+
+        private String routeId;
+
+    }
+}
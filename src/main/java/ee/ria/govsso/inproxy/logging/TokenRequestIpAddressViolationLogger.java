@@ -0,0 +1,110 @@
+package ee.ria.govsso.inproxy.logging;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+// Logs token requests that are allowed although their IP address is not allowed for the client, which happens when
+// blocking by IP address is disabled. Instead of logging each request, requests are counted per (client_id, IP address)
+// and a summary line is logged for each of them once per interval, so that nothing is formatted on the request path.
+@Slf4j
+@Component
+public class TokenRequestIpAddressViolationLogger {
+
+    private static final int MAX_SOURCES = 10000;
+
+    private final Map<Source, LongAdder> counts = new ConcurrentHashMap<>();
+    // Requests from sources that did not fit into counts
+    private final LongAdder otherCount = new LongAdder();
+    private final Counter violationCounter;
+    private final TaskScheduler taskScheduler;
+    private final Duration interval;
+    private volatile ScheduledFuture<?> scheduledFlush;
+
+    public TokenRequestIpAddressViolationLogger(
+            MeterRegistry meterRegistry,
+            TaskScheduler taskScheduler,
+            @Value("${tara-govsso-inproxy.token-request-ip-address-violations-log-interval:1m}") Duration interval) {
+        this.taskScheduler = taskScheduler;
+        this.interval = interval;
+        violationCounter = Counter.builder("token.request.allowed.ip.addresses.violations")
+                .description("Number of token requests allowed although their IP address is not allowed for the client")
+                .register(meterRegistry);
+    }
+
+    public void record(String clientId, InetSocketAddress remoteAddress) {
+        violationCounter.increment();
+        Source source = new Source(clientId, getAddress(remoteAddress));
+        LongAdder count = counts.get(source);
+        if (count == null) {
+            if (counts.size() >= MAX_SOURCES) {
+                otherCount.increment();
+                return;
+            }
+            count = counts.computeIfAbsent(source, s -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startFlush() {
+        scheduledFlush = taskScheduler.scheduleWithFixedDelay(this::flush, interval);
+    }
+
+    @PreDestroy
+    public void stopFlush() {
+        ScheduledFuture<?> flush = scheduledFlush;
+        if (flush != null) {
+            flush.cancel(false);
+        }
+        flush();
+    }
+
+    public void flush() {
+        counts.forEach((source, count) -> {
+            long sum = count.sumThenReset();
+            if (sum == 0) {
+                // No requests during the whole interval
+                counts.remove(source, count);
+                return;
+            }
+            log.warn("unauthorized_client - IP address {} is not whitelisted for client_id \"{}\", allowed {} request(s)",
+                    formatAddress(source.address()), source.clientId(), sum);
+        });
+        long other = otherCount.sumThenReset();
+        if (other > 0) {
+            log.warn("unauthorized_client - IP addresses are not whitelisted for client_id-s, allowed {} other request(s)",
+                    other);
+        }
+    }
+
+    private static Object getAddress(InetSocketAddress remoteAddress) {
+        if (remoteAddress == null) {
+            return null;
+        }
+        InetAddress address = remoteAddress.getAddress();
+        return address == null ? remoteAddress.getHostString() : address;
+    }
+
+    private static String formatAddress(Object address) {
+        return address instanceof InetAddress inetAddress ? inetAddress.getHostAddress() : String.valueOf(address);
+    }
+
+    // Address is an InetAddress or a host name if the address is unresolved
+    private record Source(String clientId, Object address) {
+    }
+}
@@ -2,23 +2,64 @@ package ee.ria.govsso.inproxy.service;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import ee.ria.govsso.inproxy.configuration.properties.AdminConfigurationProperties;
 import ee.ria.govsso.inproxy.logging.ClientRequestLogger;
+import ee.ria.govsso.inproxy.service.ipaddress.AllowedIpAddressIndex;
+import ee.ria.govsso.inproxy.service.ipaddress.AllowedIpAddressSnapshot;
+import ee.ria.govsso.inproxy.service.ipaddress.AllowedIpAddressSnapshot.Source;
+import ee.ria.govsso.inproxy.service.ipaddress.AllowedIpAddressSnapshotFile;
 import ee.ria.govsso.inproxy.util.ExceptionUtil;
+import inet.ipaddr.IPAddress;
 import inet.ipaddr.IPAddressString;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PreDestroy;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Slf4j
 @Service
@@ -28,65 +69,269 @@ public class TokenRequestAllowedIpAddressesService {
     private final AdminConfigurationProperties adminConfigurationProperties;
     private final ObjectMapper objectMapper;
     private final WebClient webclient;
+    private final TaskScheduler taskScheduler;
     private final File file;
+    private final File snapshotFile;
+    private final Timer fetchSuccessTimer;
+    private final Timer fetchErrorTimer;
+    private final Timer parseTimer;
+    private final Timer compileTimer;
+    // Null if caching decisions is disabled
+    private final Cache<DecisionKey, Boolean> decisionCache;
 
     public static final String IP_ADDRESSES_URL = "/clients/tokenrequestallowedipaddresses";
-    private static final ParameterizedTypeReference<Map<String, List<String>>> PARAMETERIZED_TYPE_REFERENCE = new ParameterizedTypeReference<>() {
+    private static final TypeReference<Map<String, List<String>>> TYPE_REFERENCE = new TypeReference<>() {
     };
+    private static final String CHANGE_FEED_URL = IP_ADDRESSES_URL + "/changes";
+    private static final ParameterizedTypeReference<ServerSentEvent<String>> SERVER_SENT_EVENT_TYPE =
+            new ParameterizedTypeReference<>() {
+            };
+    private static final double REFRESH_INTERVAL_JITTER = 0.1;
+    private static final String METRIC_PREFIX = "token.request.allowed.ip.addresses";
+    private static final String SNAPSHOT_FILE_SUFFIX = ".bin";
+    private static final String DECISION_CACHE_NAME = "tokenRequestAllowedIpAddressDecisions";
 
-    protected Map<String, List<String>> tokenRequestAllowedIpAddresses = Map.of();
+    // Written by the refresh pipeline, read by token request filters on Netty event loops.
+    private final AtomicReference<AllowedIpAddressSnapshot> snapshot =
+            new AtomicReference<>(AllowedIpAddressSnapshot.EMPTY);
+    // Requests for refreshing the list. They are processed one at a time, so that responses are applied in the order
+    // they were requested and the state below is only modified by one refresh at a time. Requests made while a
+    // refresh is in progress are completed together by a single subsequent refresh.
+    private final Sinks.Many<Boolean> refreshTriggers = Sinks.many().unicast().onBackpressureBuffer();
+    private final Queue<Sinks.Empty<Void>> pendingRefreshes = new ConcurrentLinkedQueue<>();
+    private final Disposable refreshPipeline;
+    // Last modification time and size of the storage files as written or read by this service.
+    private FileState savedFileState = FileState.NONE;
+    private FileState savedSnapshotFileState = FileState.NONE;
     @Getter
-    private boolean lastRequestToAdminSuccessful;
+    private volatile boolean lastRequestToAdminSuccessful;
+    private volatile int consecutiveFailureCount;
+    private volatile boolean stopped;
+    private volatile ScheduledFuture<?> scheduledRefresh;
+    private volatile Disposable refreshSubscription;
+    private volatile Disposable changeFeedSubscription;
 
     public TokenRequestAllowedIpAddressesService(ClientRequestLogger adminRequestLogger,
                                                  AdminConfigurationProperties adminConfigurationProperties,
                                                  ObjectMapper objectMapper,
-                                                 WebClient webclient) {
+                                                 WebClient webclient,
+                                                 TaskScheduler taskScheduler,
+                                                 MeterRegistry meterRegistry) {
         this.adminRequestLogger = adminRequestLogger;
         this.adminConfigurationProperties = adminConfigurationProperties;
         this.objectMapper = objectMapper;
         this.webclient = webclient;
+        this.taskScheduler = taskScheduler;
         file = new File(adminConfigurationProperties.tokenRequestAllowedIpAddressesStoragePath());
+        snapshotFile = new File(file.getPath() + SNAPSHOT_FILE_SUFFIX);
+        fetchSuccessTimer = fetchTimer(meterRegistry, "success");
+        fetchErrorTimer = fetchTimer(meterRegistry, "error");
+        parseTimer = Timer.builder(METRIC_PREFIX + ".parse")
+                .description("Time spent deserializing the list of allowed IP-address ranges")
+                .register(meterRegistry);
+        compileTimer = Timer.builder(METRIC_PREFIX + ".compile")
+                .description("Time spent compiling the list of allowed IP-address ranges into a lookup index")
+                .register(meterRegistry);
+        registerSnapshotGauges(meterRegistry);
+        int decisionCacheMaxSize = adminConfigurationProperties.tokenRequestAllowedIpAddressesDecisionCacheMaxSize();
+        if (decisionCacheMaxSize > 0) {
+            decisionCache = Caffeine.newBuilder()
+                    .maximumSize(decisionCacheMaxSize)
+                    .recordStats()
+                    .build();
+            CaffeineCacheMetrics.monitor(meterRegistry, decisionCache, DECISION_CACHE_NAME);
+        } else {
+            decisionCache = null;
+        }
 
-        log.info("Loading the list of allowed IP-address ranges from file '{}'", file.getAbsolutePath());
-        loadIpAddressesFromFileIgnoringExceptions();
-        log.info("Saving the list of allowed IP-address ranges to file '{}' to check writability", file.getAbsolutePath());
-        saveIpAddressesToFile();
+        // The JSON file is preferred only if it has been modified after the snapshot file, e.g. replaced manually.
+        if (!snapshotFile.exists() || file.lastModified() > snapshotFile.lastModified()
+                || !loadIpAddressesFromSnapshotFileIgnoringExceptions()) {
+            log.info("Loading the list of allowed IP-address ranges from file '{}'", file.getAbsolutePath());
+            loadIpAddressesFromFileIgnoringExceptions();
+        }
+        log.info("Checking that the list of allowed IP-address ranges can be saved to file '{}'", file.getAbsolutePath());
+        checkFileWritability();
+        refreshPipeline = refreshTriggers.asFlux()
+                .concatMap(trigger -> refreshPendingRequests(), 1)
+                .subscribe();
     }
 
-    @Scheduled(fixedRateString = "${tara-govsso-inproxy.admin.token-request-allowed-ip-addresses-refresh-interval-in-milliseconds:60000}")
-    public void updateAllowedIpsTask() {
-        try {
-            queryIpAddressesFromAdminService();
-            saveIpAddressesToFile();
-        } catch (Exception ex) {
-            log.error("Unable to update the list of allowed IP-address ranges: {}",
-                    ExceptionUtil.getCauseMessages(ex),
-                    ex);
+    @EventListener(ApplicationReadyEvent.class)
+    public void startRefresh() {
+        scheduleRefresh(Duration.ZERO);
+        if (adminConfigurationProperties.tokenRequestAllowedIpAddressesChangeFeedEnabled()) {
+            changeFeedSubscription = followChangeFeed().subscribe();
+        }
+    }
+
+    @PreDestroy
+    public void stopRefresh() {
+        stopped = true;
+        ScheduledFuture<?> refresh = scheduledRefresh;
+        if (refresh != null) {
+            refresh.cancel(false);
+        }
+        Disposable subscription = refreshSubscription;
+        if (subscription != null) {
+            subscription.dispose();
+        }
+        Disposable changeFeed = changeFeedSubscription;
+        if (changeFeed != null) {
+            changeFeed.dispose();
+        }
+        refreshPipeline.dispose();
+    }
+
+    // Requests the list from the admin service and applies it, completes once a refresh started after the call has
+    // completed. Never completes with an error, failures are logged and reflected in lastRequestToAdminSuccessful.
+    public Mono<Void> refreshAllowedIpAddresses() {
+        if (stopped) {
+            return Mono.empty();
+        }
+        Sinks.Empty<Void> refreshed = Sinks.empty();
+        pendingRefreshes.add(refreshed);
+        synchronized (refreshTriggers) {
+            refreshTriggers.tryEmitNext(Boolean.TRUE);
+        }
+        return refreshed.asMono();
+    }
+
+    private Mono<Void> refreshPendingRequests() {
+        List<Sinks.Empty<Void>> refreshes = new ArrayList<>();
+        Sinks.Empty<Void> pending;
+        while ((pending = pendingRefreshes.poll()) != null) {
+            refreshes.add(pending);
         }
+        if (refreshes.isEmpty()) {
+            // Already completed by the refresh of an earlier trigger
+            return Mono.empty();
+        }
+        return refresh().doFinally(signal -> refreshes.forEach(Sinks.Empty::tryEmitEmpty));
+    }
+
+    // The response is processed on the bounded elastic scheduler, so parsing, compiling the index and writing the file
+    // never run on a Netty event loop.
+    private Mono<Void> refresh() {
+        return queryIpAddressesFromAdminService()
+                .publishOn(Schedulers.boundedElastic())
+                .doOnNext(response -> {
+                    boolean changed = applyAdminResponse(response);
+                    if (changed || !isFileUpToDate()) {
+                        saveIpAddressesToFile();
+                    }
+                })
+                .then()
+                .doOnSuccess(ignored -> consecutiveFailureCount = 0)
+                .onErrorResume(ex -> {
+                    consecutiveFailureCount++;
+                    log.error("Unable to update the list of allowed IP-address ranges: {}",
+                            ExceptionUtil.getCauseMessages(ex),
+                            ex);
+                    return Mono.empty();
+                });
+    }
+
+    // Subscribes to server-sent events announcing changes of the list and refreshes the list on each event, so that
+    // changes are applied without waiting for the next scheduled refresh. Events received during a refresh are
+    // coalesced into a single subsequent refresh. The connection is re-established with backoff after it is closed
+    // or fails, the scheduled refresh keeps running regardless as a safety net. Never completes until cancelled.
+    public Mono<Void> followChangeFeed() {
+        Duration minBackoff = Duration.ofMillis(
+                adminConfigurationProperties.tokenRequestAllowedIpAddressesRefreshMinBackoffInMilliseconds());
+        Duration maxBackoff = Duration.ofMillis(
+                adminConfigurationProperties.tokenRequestAllowedIpAddressesRefreshIntervalInMilliseconds());
+        return Flux.defer(() -> {
+                    String uri = adminConfigurationProperties.baseUrl() + CHANGE_FEED_URL;
+                    adminRequestLogger.logRequest(uri, HttpMethod.GET);
+                    return webclient.get()
+                            .uri(uri)
+                            .accept(MediaType.TEXT_EVENT_STREAM)
+                            .retrieve()
+                            .bodyToFlux(SERVER_SENT_EVENT_TYPE);
+                })
+                .doOnError(ex -> log.warn("Change feed of allowed IP-address ranges interrupted: {}",
+                        ExceptionUtil.getCauseMessages(ex)))
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, minBackoff).maxBackoff(maxBackoff).transientErrors(true))
+                .repeatWhen(completed -> completed.delayElements(minBackoff))
+                .onBackpressureLatest()
+                .concatMap(event -> refreshAllowedIpAddresses(), 1)
+                .then();
+    }
+
+    private void scheduleRefresh(Duration delay) {
+        if (stopped) {
+            return;
+        }
+        scheduledRefresh = taskScheduler.schedule(
+                () -> refreshSubscription = refreshAllowedIpAddresses()
+                        .doFinally(signal -> scheduleRefresh(getNextRefreshDelay()))
+                        .subscribe(),
+                taskScheduler.getClock().instant().plus(delay));
+    }
+
+    // The base period is randomized so that instances started at the same time don't poll the admin service in
+    // lockstep. After failures, retries start from the minimum backoff and double up to the base period, using
+    // random jitter within each step.
+    private Duration getNextRefreshDelay() {
+        long refreshInterval = adminConfigurationProperties.tokenRequestAllowedIpAddressesRefreshIntervalInMilliseconds();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int failureCount = consecutiveFailureCount;
+        if (failureCount == 0) {
+            double jitter = 1 + REFRESH_INTERVAL_JITTER * (2 * random.nextDouble() - 1);
+            return Duration.ofMillis(Math.round(refreshInterval * jitter));
+        }
+        long minBackoff = adminConfigurationProperties.tokenRequestAllowedIpAddressesRefreshMinBackoffInMilliseconds();
+        long backoff = Math.min(refreshInterval, minBackoff << Math.min(failureCount - 1, 20));
+        return Duration.ofMillis(backoff / 2 + random.nextLong(backoff / 2 + 1));
+    }
+
+    public boolean isKnownClient(String clientId) {
+        return snapshot.get().index().containsClient(clientId);
+    }
+
+    public AllowedIpAddressSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    public boolean isTokenRequestAllowed(String clientId, InetAddress sourceAddress) {
+        return isTokenRequestAllowed(clientId, sourceAddress.getAddress());
     }
 
     public boolean isTokenRequestAllowed(String clientId, String sourceAddress) {
-        IPAddressString requestIpAddress = new IPAddressString(sourceAddress);
-        List<String> allowedClientIps = tokenRequestAllowedIpAddresses.get(clientId);
+        IPAddress requestIpAddress = new IPAddressString(sourceAddress).getAddress();
+        if (requestIpAddress == null) {
+            return false;
+        }
+        return isTokenRequestAllowed(clientId, requestIpAddress.getBytes());
+    }
 
-        if (allowedClientIps == null) {
+    // Decisions are cached per snapshot generation, so a decision made against a replaced snapshot is never returned,
+    // even if it is cached concurrently with publishing the new snapshot. Only decisions for clients in the list are
+    // cached, so that requests with arbitrary client_ids can neither fill the cache nor evict decisions of clients.
+    private boolean isTokenRequestAllowed(String clientId, byte[] sourceAddress) {
+        AllowedIpAddressSnapshot current = snapshot.get();
+        if (!current.index().containsClient(clientId)) {
             return false;
         }
+        if (decisionCache == null) {
+            return current.index().isAllowed(clientId, sourceAddress);
+        }
+        DecisionKey key = DecisionKey.of(current.generation(), clientId, sourceAddress);
+        return decisionCache.get(key, ignored -> current.index().isAllowed(clientId, sourceAddress));
+    }
 
-        for (String allowedClientIp : allowedClientIps) {
-            //TODO determine potential for optimization
-            if (new IPAddressString(allowedClientIp).contains(requestIpAddress)) {
-                return true;
-            }
+    private void invalidateDecisions() {
+        if (decisionCache != null) {
+            decisionCache.invalidateAll();
         }
-        return false;
     }
 
     public void loadIpAddressesFromFileIgnoringExceptions() {
         try {
-            tokenRequestAllowedIpAddresses = objectMapper.readValue(file, new TypeReference<>() {
-            });
+            Map<String, List<String>> ipAddresses = parseTimer.recordCallable(() -> objectMapper.readValue(file, TYPE_REFERENCE));
+            publish(Source.FILE, Instant.ofEpochMilli(file.lastModified()), ipAddresses, null, null);
+            savedFileState = FileState.of(file);
         } catch (Exception ex) {
             log.info("Unable to load the list of allowed IP-address ranges from file '{}': {}",
                     file.getAbsolutePath(),
@@ -94,28 +339,163 @@ public class TokenRequestAllowedIpAddressesService {
         }
     }
 
-    private void queryIpAddressesFromAdminService() {
+    private boolean loadIpAddressesFromSnapshotFileIgnoringExceptions() {
         try {
-            String uri = adminConfigurationProperties.baseUrl() + IP_ADDRESSES_URL;
-            adminRequestLogger.logRequest(uri, HttpMethod.GET);
-            tokenRequestAllowedIpAddresses = webclient.get()
-                    .uri(uri)
-                    .accept(MediaType.APPLICATION_JSON)
-                    .retrieve()
-                    .bodyToMono(PARAMETERIZED_TYPE_REFERENCE)
-                    .defaultIfEmpty(Map.of())
-                    .block();
-            adminRequestLogger.logResponse(HttpStatus.OK.value(), tokenRequestAllowedIpAddresses);
+            log.info("Loading the list of allowed IP-address ranges from file '{}'", snapshotFile.getAbsolutePath());
+            AllowedIpAddressSnapshot loaded = AllowedIpAddressSnapshotFile.read(snapshotFile.toPath());
+            snapshot.set(loaded);
+            invalidateDecisions();
+            savedFileState = FileState.of(file);
+            savedSnapshotFileState = FileState.of(snapshotFile);
+            return true;
+        } catch (Exception ex) {
+            log.warn("Unable to load the list of allowed IP-address ranges from file '{}': {}",
+                    snapshotFile.getAbsolutePath(),
+                    ExceptionUtil.getCauseMessages(ex));
+            return false;
+        }
+    }
+
+    private Mono<ResponseEntity<byte[]>> queryIpAddressesFromAdminService() {
+        return Mono.defer(() -> {
+                    String uri = adminConfigurationProperties.baseUrl() + IP_ADDRESSES_URL;
+                    adminRequestLogger.logRequest(uri, HttpMethod.GET);
+                    String eTag = snapshot.get().eTag();
+                    long fetchStartTime = System.nanoTime();
+                    int timeout = adminConfigurationProperties.tokenRequestAllowedIpAddressesRequestTimeoutInMilliseconds();
+                    return webclient.get()
+                            .uri(uri)
+                            .accept(MediaType.APPLICATION_JSON)
+                            .headers(headers -> {
+                                if (eTag != null) {
+                                    headers.setIfNoneMatch(eTag);
+                                }
+                            })
+                            .retrieve()
+                            .toEntity(byte[].class)
+                            .timeout(Duration.ofMillis(timeout), Mono.error(() -> new TimeoutException(
+                                    "No response from TARA/GovSSO Admin within %d ms".formatted(timeout))))
+                            .doOnSuccess(response -> fetchSuccessTimer.record(
+                                    System.nanoTime() - fetchStartTime, TimeUnit.NANOSECONDS))
+                            .doOnError(ex -> fetchErrorTimer.record(
+                                    System.nanoTime() - fetchStartTime, TimeUnit.NANOSECONDS));
+                })
+                .doOnError(ex -> lastRequestToAdminSuccessful = false);
+    }
+
+    // Returns whether the list of allowed IP-address ranges changed. When the admin service responds with 304 or
+    // with the same content as before, the response is not deserialized and the index is not rebuilt.
+    private boolean applyAdminResponse(ResponseEntity<byte[]> response) {
+        try {
+            int statusCode = response.getStatusCode().value();
+            Instant fetchedAt = taskScheduler.getClock().instant();
+            AllowedIpAddressSnapshot current = snapshot.get();
+            if (statusCode == HttpStatus.NOT_MODIFIED.value()) {
+                adminRequestLogger.logResponse(statusCode);
+                snapshot.set(current.confirmed(Source.ADMIN, fetchedAt, current.eTag()));
+                lastRequestToAdminSuccessful = true;
+                return false;
+            }
+            byte[] responseBody = response.hasBody() ? response.getBody() : new byte[0];
+            byte[] contentHash = sha256(responseBody);
+            String eTag = response.getHeaders().getETag();
+            boolean changed = !Arrays.equals(contentHash, current.contentHash());
+            if (changed) {
+                Map<String, List<String>> ipAddresses = parseTimer.record(() -> parseIpAddresses(responseBody));
+                current = publish(Source.ADMIN, fetchedAt, ipAddresses, eTag, contentHash);
+            } else {
+                snapshot.set(current.confirmed(Source.ADMIN, fetchedAt, eTag));
+            }
+            adminRequestLogger.logResponse(statusCode, current.ipAddresses());
             lastRequestToAdminSuccessful = true;
+            return changed;
         } catch (Exception e) {
             lastRequestToAdminSuccessful = false;
             throw e;
         }
     }
 
+    private Map<String, List<String>> parseIpAddresses(byte[] responseBody) {
+        if (responseBody.length == 0) {
+            return Map.of();
+        }
+        try {
+            Map<String, List<String>> ipAddresses = objectMapper.readValue(responseBody, TYPE_REFERENCE);
+            return ipAddresses == null ? Map.of() : ipAddresses;
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to parse the list of allowed IP-address ranges", ex);
+        }
+    }
+
+    private static byte[] sha256(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private AllowedIpAddressSnapshot publish(Source source,
+                                             Instant fetchedAt,
+                                             Map<String, List<String>> ipAddresses,
+                                             String eTag,
+                                             byte[] contentHash) {
+        AllowedIpAddressIndex index = compileTimer.record(() -> AllowedIpAddressIndex.compile(ipAddresses));
+        AllowedIpAddressSnapshot published = snapshot.updateAndGet(previous ->
+                previous.next(source, fetchedAt, ipAddresses, index, eTag, contentHash));
+        // Entries of previous generations can no longer be hit.
+        invalidateDecisions();
+        return published;
+    }
+
+    private static Timer fetchTimer(MeterRegistry meterRegistry, String outcome) {
+        return Timer.builder(METRIC_PREFIX + ".fetch")
+                .description("Time spent requesting the list of allowed IP-address ranges from TARA/GovSSO Admin")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    private void registerSnapshotGauges(MeterRegistry meterRegistry) {
+        TimeGauge.builder(METRIC_PREFIX + ".age", this, TimeUnit.MILLISECONDS, service -> {
+                    Duration age = service.getSnapshot().getAge(service.taskScheduler.getClock().instant());
+                    return age == null ? Double.NaN : age.toMillis();
+                })
+                .description("Time since the list of allowed IP-address ranges was last fetched or confirmed")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_PREFIX + ".generation", this, service -> service.getSnapshot().generation())
+                .description("Number of times the content of the list of allowed IP-address ranges has changed")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_PREFIX + ".clients", this, service -> service.getSnapshot().index().clientCount())
+                .description("Number of clients in the list of allowed IP-address ranges")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_PREFIX + ".ranges", this, service -> service.getSnapshot().index().rangeCount())
+                .description("Number of IP-address ranges in the list of allowed IP-address ranges")
+                .register(meterRegistry);
+    }
+
+    private boolean isFileUpToDate() {
+        return FileState.of(file).equals(savedFileState) && FileState.of(snapshotFile).equals(savedSnapshotFileState);
+    }
+
+    private void checkFileWritability() {
+        try {
+            Path directory = file.getAbsoluteFile().toPath().getParent();
+            Files.delete(Files.createTempFile(directory, file.getName(), ".tmp"));
+        } catch (Exception ex) {
+            throw new RuntimeException("Unable to save the list of allowed IP-address ranges to file '%s'"
+                    .formatted(file.getAbsolutePath()),
+                    ex);
+        }
+    }
+
     private void saveIpAddressesToFile() {
         try {
-            objectMapper.writeValue(file, tokenRequestAllowedIpAddresses);
+            AllowedIpAddressSnapshot current = snapshot.get();
+            // The snapshot file is written last, so that it is not older than the JSON file it was saved with.
+            AllowedIpAddressSnapshotFile.writeAtomically(file.toPath(), objectMapper.writeValueAsBytes(current.ipAddresses()));
+            savedFileState = FileState.of(file);
+            AllowedIpAddressSnapshotFile.write(snapshotFile.toPath(), current);
+            savedSnapshotFileState = FileState.of(snapshotFile);
         } catch (Exception ex) {
             throw new RuntimeException("Unable to save the list of allowed IP-address ranges to file '%s'"
                     .formatted(file.getAbsolutePath()),
@@ -123,4 +503,26 @@ public class TokenRequestAllowedIpAddressesService {
         }
     }
 
+    // Source address bytes (4 or 16) are packed into two longs, so that keys can be compared without array equality.
+    private record DecisionKey(long generation, String clientId, int addressLength, long addressHigh, long addressLow) {
+
+        static DecisionKey of(long generation, String clientId, byte[] address) {
+            ByteBuffer buffer = ByteBuffer.wrap(address);
+            long high = address.length > Long.BYTES ? buffer.getLong() : 0;
+            long low = 0;
+            while (buffer.hasRemaining()) {
+                low = low << Byte.SIZE | buffer.get() & 0xFF;
+            }
+            return new DecisionKey(generation, clientId, address.length, high, low);
+        }
+    }
+
+    private record FileState(boolean exists, long lastModified, long length) {
+
+        static final FileState NONE = new FileState(false, 0, 0);
+
+        static FileState of(File file) {
+            return file.exists() ? new FileState(true, file.lastModified(), file.length()) : NONE;
+        }
+    }
 }
@@ -0,0 +1,183 @@
+package ee.ria.govsso.inproxy.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import ee.ria.govsso.inproxy.configuration.properties.TokenRequestSourceBlockConfigurationProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.net.InetAddress;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Temporarily blocks token requests from sources that keep making requests for a client_id from an IP address that is
+// not allowed for it. Unauthorized requests are counted per (IP address, client_id) in an approximate sliding window
+// and once the count reaches the threshold, the source is blocked for the configured duration. Client_ids that are not
+// in the allowed IP-address list are all counted and blocked as a single unknown client, so that the number of tracked
+// client_ids per IP address is bounded by the list.
+@Slf4j
+@Service
+public class TokenRequestSourceBlockService {
+
+    private static final String METRIC_PREFIX = "token.request.source.blocks";
+    // Ory Hydra does not allow empty client_ids, so this does not collide with a known client.
+    private static final String UNKNOWN_CLIENT_ID = "";
+
+    private final TokenRequestSourceBlockConfigurationProperties properties;
+    private final TokenRequestAllowedIpAddressesService tokenRequestAllowedIpAddressesService;
+    private final long windowNanos;
+    private final Cache<SourceKey, SlidingWindowCounter> violationCounters;
+    // Keyed by IP address, so that a request can be checked before its body containing the client_id is read. Addresses
+    // are only formatted as strings for logging and listing blocks, not for checking requests.
+    private final Cache<InetAddress, Map<String, Instant>> blocks;
+    private final Counter blockCounter;
+
+    public TokenRequestSourceBlockService(TokenRequestSourceBlockConfigurationProperties properties,
+                                          TokenRequestAllowedIpAddressesService tokenRequestAllowedIpAddressesService,
+                                          MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.tokenRequestAllowedIpAddressesService = tokenRequestAllowedIpAddressesService;
+        windowNanos = properties.window().toNanos();
+        violationCounters = Caffeine.newBuilder()
+                .maximumSize(properties.maxSources())
+                .expireAfterAccess(properties.window().multipliedBy(2))
+                .build();
+        blocks = Caffeine.newBuilder()
+                .maximumSize(properties.maxSources())
+                .expireAfter(new BlockExpiry())
+                .build();
+        blockCounter = Counter.builder(METRIC_PREFIX)
+                .description("Number of times a source of unauthorized token requests has been blocked")
+                .register(meterRegistry);
+        Gauge.builder(METRIC_PREFIX + ".active", blocks, Cache::estimatedSize)
+                .description("Number of IP addresses with blocked token requests")
+                .register(meterRegistry);
+    }
+
+    public void recordUnauthorizedRequest(InetAddress ipAddress, String clientId) {
+        if (ipAddress == null || clientId == null) {
+            return;
+        }
+        String sourceClientId = getSourceClientId(clientId);
+        SourceKey key = new SourceKey(ipAddress, sourceClientId);
+        SlidingWindowCounter counter = violationCounters.get(key, k -> new SlidingWindowCounter(System.nanoTime()));
+        if (counter.incrementAndGet(System.nanoTime(), windowNanos) < properties.threshold()) {
+            return;
+        }
+        violationCounters.invalidate(key);
+        Instant blockedUntil = Instant.now().plus(properties.blockDuration());
+        blocks.asMap().compute(ipAddress, (ip, clientIds) -> {
+            Map<String, Instant> updated = clientIds == null ? new HashMap<>() : new HashMap<>(clientIds);
+            updated.put(sourceClientId, blockedUntil);
+            return Map.copyOf(updated);
+        });
+        blockCounter.increment();
+        if (sourceClientId.equals(UNKNOWN_CLIENT_ID)) {
+            log.warn("Blocking token requests from IP address {} for unknown client_ids until {} after {} unauthorized requests",
+                    ipAddress.getHostAddress(), blockedUntil, properties.threshold());
+        } else {
+            log.warn("Blocking token requests from IP address {} for client_id \"{}\" until {} after {} unauthorized requests",
+                    ipAddress.getHostAddress(), clientId, blockedUntil, properties.threshold());
+        }
+    }
+
+    // Returns the time until which token requests from the IP address for the client_id are blocked, or null if they
+    // are not blocked or the client_id is not known yet. Returns without a lookup while no source is blocked.
+    public Instant getBlockedUntil(InetAddress ipAddress, String clientId) {
+        if (ipAddress == null || clientId == null || blocks.asMap().isEmpty()) {
+            return null;
+        }
+        Map<String, Instant> clientIds = blocks.getIfPresent(ipAddress);
+        if (clientIds == null) {
+            return null;
+        }
+        Instant blockedUntil = clientIds.get(getSourceClientId(clientId));
+        return blockedUntil != null && blockedUntil.isAfter(Instant.now()) ? blockedUntil : null;
+    }
+
+    private String getSourceClientId(String clientId) {
+        return tokenRequestAllowedIpAddressesService.isKnownClient(clientId) ? clientId : UNKNOWN_CLIENT_ID;
+    }
+
+    public List<Block> getBlocks() {
+        Instant now = Instant.now();
+        return blocks.asMap().entrySet().stream()
+                .flatMap(entry -> entry.getValue().entrySet().stream()
+                        .filter(clientId -> clientId.getValue().isAfter(now))
+                        .map(clientId -> new Block(entry.getKey().getHostAddress(),
+                                clientId.getKey().equals(UNKNOWN_CLIENT_ID) ? null : clientId.getKey(),
+                                clientId.getValue())))
+                .sorted(Comparator.comparing(Block::blockedUntil))
+                .toList();
+    }
+
+    // The clientId is null for a block of unknown client_ids.
+    public record Block(String ipAddress, String clientId, Instant blockedUntil) {
+    }
+
+    private record SourceKey(InetAddress ipAddress, String clientId) {
+    }
+
+    // Approximates the count in a sliding window from the counts of the current and previous fixed windows, assuming
+    // that the requests of the previous window were evenly distributed.
+    private static class SlidingWindowCounter {
+
+        private long windowStart;
+        private long previousCount;
+        private long currentCount;
+
+        SlidingWindowCounter(long now) {
+            windowStart = now;
+        }
+
+        synchronized long incrementAndGet(long now, long windowNanos) {
+            long elapsed = now - windowStart;
+            if (elapsed >= 2 * windowNanos) {
+                previousCount = 0;
+                currentCount = 0;
+                windowStart = now;
+                elapsed = 0;
+            } else if (elapsed >= windowNanos) {
+                previousCount = currentCount;
+                currentCount = 0;
+                windowStart += windowNanos;
+                elapsed -= windowNanos;
+            }
+            currentCount++;
+            return currentCount + previousCount * (windowNanos - elapsed) / windowNanos;
+        }
+    }
+
+    private static class BlockExpiry implements Expiry<InetAddress, Map<String, Instant>> {
+
+        @Override
+        public long expireAfterCreate(InetAddress ipAddress, Map<String, Instant> clientIds, long currentTime) {
+            Instant lastBlockedUntil = clientIds.values().stream().max(Comparator.naturalOrder()).orElseThrow();
+            return Math.max(0, Duration.between(Instant.now(), lastBlockedUntil).toNanos());
+        }
+
+        @Override
+        public long expireAfterUpdate(InetAddress ipAddress,
+                                      Map<String, Instant> clientIds,
+                                      long currentTime,
+                                      long currentDuration) {
+            return expireAfterCreate(ipAddress, clientIds, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(InetAddress ipAddress,
+                                    Map<String, Instant> clientIds,
+                                    long currentTime,
+                                    long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package ee.ria.govsso.inproxy.service.ipaddress;
+
+import inet.ipaddr.ipv6.IPv6Address;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Immutable lookup structure built from the client_id -> IP-address ranges map received from the admin service.
+// It is compiled once per list update so that token requests don't have to parse the ranges again.
+public final class AllowedIpAddressIndex {
+
+    public static final AllowedIpAddressIndex EMPTY = new AllowedIpAddressIndex(Map.of(), 0);
+
+    private final Map<String, AllowedIpAddressRanges> rangesByClientId;
+    private final int rangeCount;
+
+    AllowedIpAddressIndex(Map<String, AllowedIpAddressRanges> rangesByClientId, int rangeCount) {
+        this.rangesByClientId = rangesByClientId;
+        this.rangeCount = rangeCount;
+    }
+
+    public static AllowedIpAddressIndex compile(Map<String, List<String>> ipAddressesByClientId) {
+        if (ipAddressesByClientId.isEmpty()) {
+            return EMPTY;
+        }
+        Map<String, AllowedIpAddressRanges> rangesByClientId = new HashMap<>(ipAddressesByClientId.size() * 2);
+        int rangeCount = 0;
+        for (Map.Entry<String, List<String>> entry : ipAddressesByClientId.entrySet()) {
+            List<String> ranges = entry.getValue();
+            if (ranges != null) {
+                rangesByClientId.put(entry.getKey(), AllowedIpAddressRanges.compile(entry.getKey(), ranges));
+                rangeCount += ranges.size();
+            }
+        }
+        return new AllowedIpAddressIndex(Map.copyOf(rangesByClientId), rangeCount);
+    }
+
+    public boolean isAllowed(String clientId, byte[] address) {
+        AllowedIpAddressRanges ranges = rangesByClientId.get(clientId);
+        return ranges != null && ranges.contains(unmapIpv4(address));
+    }
+
+    public boolean containsClient(String clientId) {
+        return clientId != null && rangesByClientId.containsKey(clientId);
+    }
+
+    // Dual-stack sockets may report IPv4 clients as IPv4-mapped IPv6 addresses (::ffff:a.b.c.d), these are checked
+    // against the IPv4 ranges.
+    static byte[] unmapIpv4(byte[] address) {
+        if (address.length != IPv6Address.BYTE_COUNT) {
+            return address;
+        }
+        for (int i = 0; i < 10; i++) {
+            if (address[i] != 0) {
+                return address;
+            }
+        }
+        if (address[10] != (byte) 0xff || address[11] != (byte) 0xff) {
+            return address;
+        }
+        return Arrays.copyOfRange(address, 12, IPv6Address.BYTE_COUNT);
+    }
+
+    public int clientCount() {
+        return rangesByClientId.size();
+    }
+
+    public int rangeCount() {
+        return rangeCount;
+    }
+
+    Map<String, AllowedIpAddressRanges> rangesByClientId() {
+        return rangesByClientId;
+    }
+}
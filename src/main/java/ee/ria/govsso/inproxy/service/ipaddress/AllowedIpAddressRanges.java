@@ -0,0 +1,101 @@
+package ee.ria.govsso.inproxy.service.ipaddress;
+
+import inet.ipaddr.IPAddress;
+import inet.ipaddr.IPAddressString;
+import inet.ipaddr.ipv4.IPv4Address;
+import inet.ipaddr.ipv6.IPv6Address;
+import lombok.extern.slf4j.Slf4j;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// Allowed IP-address ranges of a single client, compiled once per list update. Every range that can be expressed as a
+// set of CIDR prefix blocks (single addresses, CIDR notation, wildcards and dash ranges in the last segments, "*") goes
+// into the per-version prefix trie. Ranges that would expand into too many blocks (e.g. "1.*.3.4") are kept as parsed
+// addresses and checked one by one.
+@Slf4j
+public final class AllowedIpAddressRanges {
+
+    static final BigInteger MAX_SEQUENTIAL_BLOCKS_PER_RANGE = BigInteger.valueOf(256);
+
+    private final IpAddressPrefixTrie ipv4Trie;
+    private final IpAddressPrefixTrie ipv6Trie;
+    private final List<IPAddress> otherRanges;
+
+    AllowedIpAddressRanges(IpAddressPrefixTrie ipv4Trie, IpAddressPrefixTrie ipv6Trie, List<IPAddress> otherRanges) {
+        this.ipv4Trie = ipv4Trie;
+        this.ipv6Trie = ipv6Trie;
+        this.otherRanges = otherRanges;
+    }
+
+    public static AllowedIpAddressRanges compile(String clientId, List<String> ranges) {
+        IpAddressPrefixTrie.Builder ipv4Builder = new IpAddressPrefixTrie.Builder(IPv4Address.BIT_COUNT);
+        IpAddressPrefixTrie.Builder ipv6Builder = new IpAddressPrefixTrie.Builder(IPv6Address.BIT_COUNT);
+        List<IPAddress> otherRanges = new ArrayList<>();
+        for (String range : ranges) {
+            IPAddressString rangeString = new IPAddressString(range);
+            if (rangeString.isAllAddresses()) {
+                ipv4Builder.add(new byte[IPv4Address.BYTE_COUNT], 0);
+                ipv6Builder.add(new byte[IPv6Address.BYTE_COUNT], 0);
+                continue;
+            }
+            IPAddress address = rangeString.getAddress();
+            if (address == null) {
+                log.warn("Ignoring invalid IP-address range '{}' of client '{}'", range, clientId);
+                continue;
+            }
+            IpAddressPrefixTrie.Builder builder = address.isIPv4() ? ipv4Builder : ipv6Builder;
+            if (address.isSequential()) {
+                addPrefixBlocks(builder, address);
+            } else if (address.getSequentialBlockCount().compareTo(MAX_SEQUENTIAL_BLOCKS_PER_RANGE) <= 0) {
+                Iterator<? extends IPAddress> blocks = address.sequentialBlockIterator();
+                while (blocks.hasNext()) {
+                    addPrefixBlocks(builder, blocks.next());
+                }
+            } else {
+                otherRanges.add(address.withoutPrefixLength());
+            }
+        }
+        return new AllowedIpAddressRanges(ipv4Builder.build(), ipv6Builder.build(), List.copyOf(otherRanges));
+    }
+
+    private static void addPrefixBlocks(IpAddressPrefixTrie.Builder builder, IPAddress sequentialAddress) {
+        for (IPAddress block : sequentialAddress.toSequentialRange().spanWithPrefixBlocks()) {
+            Integer prefixLength = block.getPrefixLength();
+            builder.add(block.getBytes(), prefixLength == null ? block.getBitCount() : prefixLength);
+        }
+    }
+
+    public boolean contains(byte[] address) {
+        IpAddressPrefixTrie trie = address.length == IPv4Address.BYTE_COUNT ? ipv4Trie : ipv6Trie;
+        if (trie.contains(address)) {
+            return true;
+        }
+        if (otherRanges.isEmpty()) {
+            return false;
+        }
+        IPAddress ipAddress = address.length == IPv4Address.BYTE_COUNT
+                ? new IPv4Address(address)
+                : new IPv6Address(address);
+        for (IPAddress range : otherRanges) {
+            if (range.getByteCount() == address.length && range.contains(ipAddress)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    IpAddressPrefixTrie ipv4Trie() {
+        return ipv4Trie;
+    }
+
+    IpAddressPrefixTrie ipv6Trie() {
+        return ipv6Trie;
+    }
+
+    List<IPAddress> otherRanges() {
+        return otherRanges;
+    }
+}
@@ -0,0 +1,44 @@
+package ee.ria.govsso.inproxy.service.ipaddress;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+// Immutable state of the allowed IP-address ranges, replaced as a whole whenever the list is loaded or refreshed.
+// Generation is incremented only when the content changes, fetchedAt is updated also when the admin service
+// confirms that the content is unchanged (for snapshots loaded from file, it is the modification time of the file
+// or the time the content was last fetched before it was saved).
+public record AllowedIpAddressSnapshot(
+        long generation,
+        Source source,
+        Instant fetchedAt,
+        Map<String, List<String>> ipAddresses,
+        AllowedIpAddressIndex index,
+        String eTag,
+        byte[] contentHash) {
+
+    public static final AllowedIpAddressSnapshot EMPTY = new AllowedIpAddressSnapshot(
+            0, Source.NONE, null, Map.of(), AllowedIpAddressIndex.EMPTY, null, null);
+
+    public enum Source {
+        NONE, FILE, ADMIN
+    }
+
+    public AllowedIpAddressSnapshot next(Source source,
+                                         Instant fetchedAt,
+                                         Map<String, List<String>> ipAddresses,
+                                         AllowedIpAddressIndex index,
+                                         String eTag,
+                                         byte[] contentHash) {
+        return new AllowedIpAddressSnapshot(generation + 1, source, fetchedAt, ipAddresses, index, eTag, contentHash);
+    }
+
+    public AllowedIpAddressSnapshot confirmed(Source source, Instant fetchedAt, String eTag) {
+        return new AllowedIpAddressSnapshot(generation, source, fetchedAt, ipAddresses, index, eTag, contentHash);
+    }
+
+    public Duration getAge(Instant now) {
+        return fetchedAt == null ? null : Duration.between(fetchedAt, now);
+    }
+}
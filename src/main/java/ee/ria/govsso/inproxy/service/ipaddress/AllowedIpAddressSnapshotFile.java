@@ -0,0 +1,200 @@
+package ee.ria.govsso.inproxy.service.ipaddress;
+
+import ee.ria.govsso.inproxy.service.ipaddress.AllowedIpAddressSnapshot.Source;
+import inet.ipaddr.IPAddress;
+import inet.ipaddr.IPAddressString;
+import inet.ipaddr.ipv4.IPv4Address;
+import inet.ipaddr.ipv6.IPv6Address;
+import lombok.experimental.UtilityClass;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Binary form of an allowed IP-address ranges snapshot, containing the compiled tries so that the index can be
+// restored at startup without parsing the ranges. All values are big-endian:
+//
+//   int magic, int version, long fetchedAt (epoch milliseconds), string eTag, bytes contentHash, int clientCount,
+//   clientCount * (string clientId, int rangeCount, rangeCount * string range, trie ipv4Trie, trie ipv6Trie,
+//                  int otherRangeCount, otherRangeCount * string otherRange),
+//   int crc32 (of all preceding bytes)
+//
+// where string and bytes are an int length (-1 for null) followed by UTF-8 encoded characters or raw bytes, and trie
+// is a boolean matchesAll, followed by an int node array length and the node array.
+@UtilityClass
+public class AllowedIpAddressSnapshotFile {
+
+    private static final int MAGIC = 0x54474950; // "TGIP"
+    private static final int VERSION = 1;
+
+    public void write(Path path, AllowedIpAddressSnapshot snapshot) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(snapshot.fetchedAt() == null ? 0 : snapshot.fetchedAt().toEpochMilli());
+        writeString(out, snapshot.eTag());
+        writeBytes(out, snapshot.contentHash());
+        Map<String, AllowedIpAddressRanges> rangesByClientId = snapshot.index().rangesByClientId();
+        out.writeInt(rangesByClientId.size());
+        for (Map.Entry<String, AllowedIpAddressRanges> entry : rangesByClientId.entrySet()) {
+            List<String> ranges = snapshot.ipAddresses().get(entry.getKey());
+            writeString(out, entry.getKey());
+            out.writeInt(ranges.size());
+            for (String range : ranges) {
+                writeString(out, range);
+            }
+            writeTrie(out, entry.getValue().ipv4Trie());
+            writeTrie(out, entry.getValue().ipv6Trie());
+            List<IPAddress> otherRanges = entry.getValue().otherRanges();
+            out.writeInt(otherRanges.size());
+            for (IPAddress otherRange : otherRanges) {
+                writeString(out, otherRange.toNormalizedString());
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+        writeAtomically(path, bytes.toByteArray());
+    }
+
+    public AllowedIpAddressSnapshot read(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            return read(buffer);
+        } catch (RuntimeException ex) {
+            throw new IOException("Invalid allowed IP-address ranges snapshot file '%s'".formatted(path), ex);
+        }
+    }
+
+    private AllowedIpAddressSnapshot read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 3 * Integer.BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an allowed IP-address ranges snapshot file");
+        }
+        if (buffer.getInt(Integer.BYTES) != VERSION) {
+            throw new IOException("Unsupported snapshot file version " + buffer.getInt(Integer.BYTES));
+        }
+        int crcOffset = buffer.limit() - Integer.BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().limit(crcOffset));
+        if ((int) crc.getValue() != buffer.getInt(crcOffset)) {
+            throw new IOException("Snapshot file checksum mismatch");
+        }
+        buffer.position(2 * Integer.BYTES);
+        long fetchedAt = buffer.getLong();
+        String eTag = readString(buffer);
+        byte[] contentHash = readBytes(buffer);
+        int clientCount = buffer.getInt();
+        Map<String, List<String>> ipAddresses = new LinkedHashMap<>();
+        Map<String, AllowedIpAddressRanges> rangesByClientId = new HashMap<>(clientCount * 2);
+        int rangeCount = 0;
+        for (int i = 0; i < clientCount; i++) {
+            String clientId = readString(buffer);
+            int clientRangeCount = buffer.getInt();
+            List<String> ranges = new ArrayList<>(clientRangeCount);
+            for (int j = 0; j < clientRangeCount; j++) {
+                ranges.add(readString(buffer));
+            }
+            IpAddressPrefixTrie ipv4Trie = readTrie(buffer, IPv4Address.BIT_COUNT);
+            IpAddressPrefixTrie ipv6Trie = readTrie(buffer, IPv6Address.BIT_COUNT);
+            int otherRangeCount = buffer.getInt();
+            List<IPAddress> otherRanges = new ArrayList<>(otherRangeCount);
+            for (int j = 0; j < otherRangeCount; j++) {
+                otherRanges.add(new IPAddressString(readString(buffer)).getAddress());
+            }
+            ipAddresses.put(clientId, List.copyOf(ranges));
+            rangesByClientId.put(clientId, new AllowedIpAddressRanges(ipv4Trie, ipv6Trie, List.copyOf(otherRanges)));
+            rangeCount += clientRangeCount;
+        }
+        if (buffer.position() != crcOffset) {
+            throw new IOException("Unexpected data at the end of snapshot file");
+        }
+        AllowedIpAddressIndex index = new AllowedIpAddressIndex(Map.copyOf(rangesByClientId), rangeCount);
+        return AllowedIpAddressSnapshot.EMPTY.next(Source.FILE,
+                fetchedAt == 0 ? null : Instant.ofEpochMilli(fetchedAt),
+                ipAddresses,
+                index,
+                eTag,
+                contentHash);
+    }
+
+    public void writeAtomically(Path path, byte[] content) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Path tempFile = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tempFile, content);
+            Files.move(tempFile, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private void writeTrie(DataOutputStream out, IpAddressPrefixTrie trie) throws IOException {
+        out.writeBoolean(trie.matchesAll());
+        int[] children = trie.children();
+        out.writeInt(children.length);
+        for (int child : children) {
+            out.writeInt(child);
+        }
+    }
+
+    private IpAddressPrefixTrie readTrie(ByteBuffer buffer, int bitCount) {
+        boolean matchesAll = buffer.get() != 0;
+        int[] children = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(children);
+        buffer.position(buffer.position() + children.length * Integer.BYTES);
+        for (int child : children) {
+            if (child < IpAddressPrefixTrie.FULL || child >= children.length / 2) {
+                throw new IllegalArgumentException("Invalid trie node reference " + child);
+            }
+        }
+        return new IpAddressPrefixTrie(bitCount, matchesAll, children);
+    }
+
+    private void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String readString(ByteBuffer buffer) {
+        byte[] bytes = readBytes(buffer);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,144 @@
+package ee.ria.govsso.inproxy.service.ipaddress;
+
+import java.util.Arrays;
+
+// Binary trie of address prefixes for a single IP version. Nodes are stored in a flat array where node `n` has its
+// `0` and `1` children at indexes `2n` and `2n + 1`. A child value of 0 means "no child" (root can never be a child)
+// and FULL means that a prefix ends there, so every address below it is contained. Lookups walk at most one node per
+// address bit and don't allocate.
+public final class IpAddressPrefixTrie {
+
+    static final int FULL = -1;
+    private static final int NONE = 0;
+
+    private final int bitCount;
+    private final boolean matchesAll;
+    private final int[] children;
+
+    IpAddressPrefixTrie(int bitCount, boolean matchesAll, int[] children) {
+        this.bitCount = bitCount;
+        this.matchesAll = matchesAll;
+        this.children = children;
+    }
+
+    public boolean contains(byte[] address) {
+        if (address.length * Byte.SIZE != bitCount) {
+            return false;
+        }
+        if (matchesAll) {
+            return true;
+        }
+        int node = 0;
+        for (int i = 0; i < bitCount; i++) {
+            int next = children[2 * node + bit(address, i)];
+            if (next == FULL) {
+                return true;
+            }
+            if (next == NONE) {
+                return false;
+            }
+            node = next;
+        }
+        return false;
+    }
+
+    int bitCount() {
+        return bitCount;
+    }
+
+    boolean matchesAll() {
+        return matchesAll;
+    }
+
+    int[] children() {
+        return children;
+    }
+
+    private static int bit(byte[] bytes, int index) {
+        return (bytes[index >>> 3] >>> (7 - (index & 7))) & 1;
+    }
+
+    static class Builder {
+
+        private final int bitCount;
+        private boolean matchesAll;
+        private int[] children = new int[32];
+        private int nodeCount = 1;
+
+        Builder(int bitCount) {
+            this.bitCount = bitCount;
+        }
+
+        Builder add(byte[] prefix, int prefixLength) {
+            if (prefix.length * Byte.SIZE != bitCount || prefixLength < 0 || prefixLength > bitCount) {
+                throw new IllegalArgumentException("Invalid prefix for a " + bitCount + "-bit trie");
+            }
+            if (prefixLength == 0) {
+                matchesAll = true;
+                return this;
+            }
+            int node = 0;
+            for (int i = 0; i < prefixLength; i++) {
+                int slot = 2 * node + bit(prefix, i);
+                int next = children[slot];
+                if (next == FULL) {
+                    // Already covered by a shorter prefix.
+                    return this;
+                }
+                if (i == prefixLength - 1) {
+                    // Any longer prefixes below this node become unreachable and are dropped on build.
+                    children[slot] = FULL;
+                    return this;
+                }
+                if (next == NONE) {
+                    next = allocateNode();
+                    children[slot] = next;
+                }
+                node = next;
+            }
+            return this;
+        }
+
+        IpAddressPrefixTrie build() {
+            return new IpAddressPrefixTrie(bitCount, matchesAll, compact());
+        }
+
+        private int allocateNode() {
+            if (2 * (nodeCount + 1) > children.length) {
+                children = Arrays.copyOf(children, children.length * 2);
+            }
+            return nodeCount++;
+        }
+
+        // Copies only the nodes that are still reachable from the root, renumbering them in depth-first order.
+        private int[] compact() {
+            int[] renumbered = new int[nodeCount];
+            Arrays.fill(renumbered, -1);
+            int[] stack = new int[nodeCount];
+            int stackSize = 0;
+            int reachableCount = 0;
+            stack[stackSize++] = 0;
+            while (stackSize > 0) {
+                int node = stack[--stackSize];
+                renumbered[node] = reachableCount++;
+                for (int bit = 1; bit >= 0; bit--) {
+                    int child = children[2 * node + bit];
+                    if (child != NONE && child != FULL) {
+                        stack[stackSize++] = child;
+                    }
+                }
+            }
+            int[] compacted = new int[2 * reachableCount];
+            for (int node = 0; node < nodeCount; node++) {
+                if (renumbered[node] < 0) {
+                    continue;
+                }
+                for (int bit = 0; bit <= 1; bit++) {
+                    int child = children[2 * node + bit];
+                    compacted[2 * renumbered[node] + bit] = child == NONE || child == FULL ? child : renumbered[child];
+                }
+            }
+            return compacted;
+        }
+    }
+}
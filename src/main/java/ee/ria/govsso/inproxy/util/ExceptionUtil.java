@@ -10,7 +10,7 @@ import java.util.stream.Collectors;
 @UtilityClass
 public class ExceptionUtil {
 
-    public String getCauseMessages(Exception ex) {
+    public String getCauseMessages(Throwable ex) {
         return ExceptionUtils.getThrowableList(ex).stream()
                 .map(Throwable::getMessage)
                 .filter(Objects::nonNull)
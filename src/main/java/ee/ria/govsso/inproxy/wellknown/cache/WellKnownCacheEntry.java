@@ -0,0 +1,10 @@
+package ee.ria.govsso.inproxy.wellknown.cache;
+
+// Cached response as listed for monitoring, size includes headers and the compressed variant of the response
+public record WellKnownCacheEntry(
+        String key,
+        int size,
+        long ageInSeconds,
+        long hits,
+        String etag) {
+}
@@ -0,0 +1,68 @@
+package ee.ria.govsso.inproxy.wellknown.cache;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Cache keys based on the upstream path of requests, so that request paths rewritten to the same upstream path share
+// cached responses. Nothing else of the request is relevant for `.well-known` responses, except request headers that
+// responses vary by. The upstream path is only known once the request has been routed, so it is learned from the first
+// response for each request path and looked up by the request path afterwards, without hashing anything.
+class WellKnownCacheKeys {
+
+    // Request paths of a route are limited by its predicates, the limit only guards against predicates matching any path
+    private static final int MAX_REQUEST_PATHS = 1000;
+    // Upstream paths always start with "/", so keys of request paths never match keys of cached responses
+    private static final String REQUEST_PATH_KEY_PREFIX = "path:";
+
+    private final Map<String, String> primaryKeysByRequestPath = new ConcurrentHashMap<>();
+
+    // Key of the request path if the upstream path of the request path is not known yet
+    String getPrimaryKey(ServerHttpRequest request) {
+        String requestPath = request.getPath().value();
+        String primaryKey = primaryKeysByRequestPath.get(requestPath);
+        return primaryKey != null ? primaryKey : REQUEST_PATH_KEY_PREFIX + requestPath;
+    }
+
+    String learnPrimaryKey(ServerHttpRequest request, URI upstreamUri) {
+        String primaryKey = getPrimaryKey(request, upstreamUri);
+        if (primaryKeysByRequestPath.size() < MAX_REQUEST_PATHS) {
+            primaryKeysByRequestPath.put(request.getPath().value(), primaryKey);
+        }
+        return primaryKey;
+    }
+
+    // Upstream paths of request paths that have been learned
+    Map<String, String> primaryKeysByRequestPath() {
+        return Map.copyOf(primaryKeysByRequestPath);
+    }
+
+    void addPrimaryKeys(Map<String, String> primaryKeysByRequestPath) {
+        primaryKeysByRequestPath.forEach((requestPath, primaryKey) -> {
+            if (this.primaryKeysByRequestPath.size() < MAX_REQUEST_PATHS) {
+                this.primaryKeysByRequestPath.put(requestPath, primaryKey);
+            }
+        });
+    }
+
+    // Upstream path after rewriting, or the request path if the request has not been routed
+    static String getPrimaryKey(ServerHttpRequest request, URI upstreamUri) {
+        return upstreamUri != null ? upstreamUri.getRawPath() : request.getPath().value();
+    }
+
+    // Header names are the same for all variants of a primary key and header values can not contain line breaks
+    static String getVariantKey(String primaryKey, List<String> varyHeaders, HttpHeaders requestHeaders) {
+        if (varyHeaders.isEmpty()) {
+            return primaryKey;
+        }
+        StringBuilder key = new StringBuilder(primaryKey);
+        for (String header : varyHeaders) {
+            key.append('\n').append(String.join(", ", requestHeaders.getOrEmpty(header)));
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,272 @@
+package ee.ria.govsso.inproxy.wellknown.cache;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Cached response together with what is needed to refresh it from upstream in the background. Everything that is
+// written to the client is prepared when the response is stored, so that serving it does not copy or rebuild anything.
+class WellKnownCachedResponse {
+
+    private static final int ETAG_HASH_LENGTH = 16;
+
+    private final Representation response;
+    // Null if the response is not worth compressing
+    private final Representation gzipResponse;
+    // Upstream URI before load balancing, null if the response cannot be refreshed
+    private final URI upstreamUri;
+    // Request headers listed in the Vary header of the response, sent again when refreshing the response
+    private final HttpHeaders varyRequestHeaders;
+    private final List<String> varyHeaders;
+    // Null if the response is not a JSON Web Key Set
+    private final Set<String> keyIds;
+    private final long storedAtNanos;
+    private final int weight;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    // Number of requests served from cache, only for monitoring
+    private final LongAdder hits = new LongAdder();
+    private volatile long nextRefreshNanos;
+    private volatile long lastKeySetProbeNanos;
+    // When the response was last received or confirmed by upstream, the Age header is counted from it
+    private volatile long validatedAtNanos;
+
+    WellKnownCachedResponse(HttpStatusCode statusCode,
+                            HttpHeaders upstreamHeaders,
+                            byte[] body,
+                            URI upstreamUri,
+                            HttpHeaders varyRequestHeaders,
+                            long storedAtNanos,
+                            Duration timeToLive,
+                            Duration keySetProbeInterval) {
+        this.keyIds = WellKnownKeySet.keyIds(statusCode, upstreamHeaders, body);
+        // Clients can cache the response for as long as the cache does, but key sets only until the cache checks them
+        // for rotated keys again, the Age header is added when serving
+        Duration maxAge = keyIds != null && keySetProbeInterval != null && keySetProbeInterval.compareTo(timeToLive) < 0
+                ? keySetProbeInterval
+                : timeToLive;
+        byte[] gzipBody = WellKnownResponseCompression.compress(statusCode, upstreamHeaders, body);
+        String etag = HttpStatus.OK.equals(statusCode) ? calculateETag(body) : null;
+        this.response = Representation.create(statusCode, upstreamHeaders, body, headers -> {
+            headers.set(HttpHeaders.CACHE_CONTROL, withMaxAge(headers.getOrEmpty(HttpHeaders.CACHE_CONTROL), maxAge));
+            headers.remove(HttpHeaders.EXPIRES);
+            if (etag != null) {
+                headers.setETag(etag);
+            }
+            if (gzipBody != null && !variesBy(headers, HttpHeaders.ACCEPT_ENCODING)) {
+                headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            }
+        });
+        this.gzipResponse = gzipBody == null ? null : Representation.create(statusCode, response.headers(), gzipBody,
+                headers -> {
+                    headers.set(HttpHeaders.CONTENT_ENCODING, WellKnownResponseCompression.GZIP);
+                    if (etag != null) {
+                        // Strong ETag must be different for each content coding
+                        headers.setETag(etag.substring(0, etag.length() - 1) + "-" + WellKnownResponseCompression.GZIP + "\"");
+                    }
+                });
+        this.upstreamUri = upstreamUri;
+        this.varyRequestHeaders = HttpHeaders.readOnlyHttpHeaders(varyRequestHeaders);
+        this.varyHeaders = varyHeaders(upstreamHeaders);
+        this.storedAtNanos = storedAtNanos;
+        this.nextRefreshNanos = storedAtNanos;
+        this.lastKeySetProbeNanos = storedAtNanos;
+        this.validatedAtNanos = storedAtNanos;
+        this.weight = response.weight() + (gzipResponse != null ? gzipResponse.weight() : 0);
+    }
+
+    Representation response() {
+        return response;
+    }
+
+    // Returns the representation of the response with the content coding preferred by the request
+    Representation response(HttpHeaders requestHeaders) {
+        if (gzipResponse != null && WellKnownResponseCompression.acceptsGzip(requestHeaders)) {
+            return gzipResponse;
+        }
+        return response;
+    }
+
+    URI upstreamUri() {
+        return upstreamUri;
+    }
+
+    HttpHeaders varyRequestHeaders() {
+        return varyRequestHeaders;
+    }
+
+    // Request headers the response varies by, see varyHeaders(HttpHeaders)
+    List<String> varyHeaders() {
+        return varyHeaders;
+    }
+
+    // Null if the response is not a JSON Web Key Set, see WellKnownKeySet
+    Set<String> keyIds() {
+        return keyIds;
+    }
+
+    long ageNanos(long now) {
+        return now - storedAtNanos;
+    }
+
+    // Value of the Age header, as per https://www.rfc-editor.org/rfc/rfc9111#name-age. A key set that a probe has found
+    // unchanged counts as validated, so that its age stays within the max-age capped at the probe interval.
+    String ageHeaderValue(long now) {
+        return Long.toString(Math.max(0, TimeUnit.NANOSECONDS.toSeconds(now - validatedAtNanos)));
+    }
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    // Number of bytes held by the cached response
+    int weight() {
+        return weight;
+    }
+
+    // Returns true if the caller should refresh the response, at most one refresh is in progress at a time.
+    boolean startRefresh(long now, long refreshAfterNanos) {
+        if (upstreamUri == null || ageNanos(now) < refreshAfterNanos || now - nextRefreshNanos < 0) {
+            return false;
+        }
+        return refreshing.compareAndSet(false, true);
+    }
+
+    void refreshFailed(long retryAtNanos) {
+        nextRefreshNanos = retryAtNanos;
+        refreshing.set(false);
+    }
+
+    // Returns true if the caller should check upstream for a changed key set, never while refreshing the response.
+    boolean startKeySetProbe(long now, long probeIntervalNanos) {
+        if (keyIds == null || upstreamUri == null || now - lastKeySetProbeNanos < probeIntervalNanos) {
+            return false;
+        }
+        if (!refreshing.compareAndSet(false, true)) {
+            return false;
+        }
+        lastKeySetProbeNanos = now;
+        return true;
+    }
+
+    void keySetProbeFinished() {
+        refreshing.set(false);
+    }
+
+    void keySetProbeUnchanged(long probeStartNanos) {
+        validatedAtNanos = probeStartNanos;
+        refreshing.set(false);
+    }
+
+    // Lower case names of request headers listed in the Vary header of the response, sorted so that the same headers
+    // always give the same cache key. Accept-Encoding is left out, because responses are requested from upstream without
+    // content coding and the content coding is chosen by the cache.
+    static List<String> varyHeaders(HttpHeaders responseHeaders) {
+        return responseHeaders.getVary().stream()
+                .map(header -> header.toLowerCase(Locale.ROOT))
+                .filter(header -> !HttpHeaders.ACCEPT_ENCODING.equalsIgnoreCase(header))
+                .distinct()
+                .sorted()
+                .toList();
+    }
+
+    // Only values of the given headers, as sent by the client
+    static HttpHeaders varyRequestHeaders(HttpHeaders requestHeaders, List<String> varyHeaders) {
+        HttpHeaders headers = new HttpHeaders();
+        for (String header : varyHeaders) {
+            List<String> values = requestHeaders.get(header);
+            if (values != null) {
+                headers.addAll(header, values);
+            }
+        }
+        return headers;
+    }
+
+    private static boolean variesBy(HttpHeaders responseHeaders, String requestHeader) {
+        return responseHeaders.getVary().stream().anyMatch(requestHeader::equalsIgnoreCase);
+    }
+
+    // Replaces max-age and s-maxage directives of the upstream response, other directives are kept
+    private static String withMaxAge(List<String> cacheControl, Duration maxAge) {
+        List<String> directives = new ArrayList<>();
+        for (String value : cacheControl) {
+            for (String directive : value.split(",")) {
+                String trimmed = directive.trim();
+                String name = StringUtils.substringBefore(trimmed, "=").trim();
+                if (!trimmed.isEmpty() && !"max-age".equalsIgnoreCase(name) && !"s-maxage".equalsIgnoreCase(name)) {
+                    directives.add(trimmed);
+                }
+            }
+        }
+        directives.add("max-age=" + maxAge.toSeconds());
+        return String.join(", ", directives);
+    }
+
+    // Strong ETag derived from the identity-encoded body, independent of the ETag of the upstream response
+    private static String calculateETag(byte[] body) {
+        try {
+            byte[] hash = Arrays.copyOf(MessageDigest.getInstance("SHA-256").digest(body), ETAG_HASH_LENGTH);
+            return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(hash) + "\"";
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // Status, read-only headers with the exact Content-Length and the body in a single read-only off-heap buffer.
+    record Representation(HttpStatusCode statusCode, HttpHeaders headers, ByteBuffer body) {
+
+        private static Representation create(HttpStatusCode statusCode,
+                                             HttpHeaders headers,
+                                             byte[] body,
+                                             Consumer<HttpHeaders> headersCustomizer) {
+            HttpHeaders representationHeaders = new HttpHeaders();
+            representationHeaders.addAll(headers);
+            representationHeaders.remove(HttpHeaders.TRANSFER_ENCODING);
+            representationHeaders.setContentLength(body.length);
+            headersCustomizer.accept(representationHeaders);
+            ByteBuffer directBody = ByteBuffer.allocateDirect(body.length).put(body).flip();
+            return new Representation(
+                    statusCode,
+                    HttpHeaders.readOnlyHttpHeaders(representationHeaders),
+                    directBody.asReadOnlyBuffer());
+        }
+
+        // Wraps the shared body without copying it, the buffer has its own position and limit.
+        DataBuffer body(DataBufferFactory bufferFactory) {
+            return bufferFactory.wrap(body.duplicate());
+        }
+
+        private int weight() {
+            long weight = body.capacity();
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                for (String value : header.getValue()) {
+                    weight += header.getKey().length() + value.length();
+                }
+            }
+            return (int) Math.min(weight, Integer.MAX_VALUE);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package ee.ria.govsso.inproxy.wellknown.cache;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+// Identifies the keys of a cached JSON Web Key Set (https://www.rfc-editor.org/rfc/rfc7517#section-5), so that key
+// rotation in upstream can be detected by comparing key sets without comparing whole responses.
+final class WellKnownKeySet {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private WellKnownKeySet() {
+    }
+
+    // Returns the "kid" values of the keys, or the whole key for keys without "kid", or null if the response is not
+    // a JSON Web Key Set.
+    static Set<String> keyIds(HttpStatusCode statusCode, HttpHeaders headers, byte[] body) {
+        if (!HttpStatus.OK.equals(statusCode) || !isJson(headers)) {
+            return null;
+        }
+        JsonNode keys;
+        try {
+            keys = OBJECT_MAPPER.readTree(body).path("keys");
+        } catch (IOException e) {
+            return null;
+        }
+        if (!keys.isArray()) {
+            return null;
+        }
+        Set<String> keyIds = new HashSet<>();
+        for (JsonNode key : keys) {
+            JsonNode keyId = key.get("kid");
+            keyIds.add(keyId != null && keyId.isTextual() ? keyId.asText() : key.toString());
+        }
+        return Set.copyOf(keyIds);
+    }
+
+    private static boolean isJson(HttpHeaders headers) {
+        MediaType contentType;
+        try {
+            contentType = headers.getContentType();
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return contentType != null && (MediaType.APPLICATION_JSON.isCompatibleWith(contentType)
+                || "jwk-set+json".equalsIgnoreCase(contentType.getSubtype()));
+    }
+}
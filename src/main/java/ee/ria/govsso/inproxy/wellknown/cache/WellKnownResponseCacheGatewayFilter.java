@@ -16,16 +16,18 @@
 
 package ee.ria.govsso.inproxy.wellknown.cache;
 
+import ee.ria.govsso.inproxy.wellknown.cache.WellKnownCachedResponse.Representation;
 import lombok.extern.slf4j.Slf4j;
 import org.reactivestreams.Publisher;
 import org.springframework.cloud.gateway.filter.GatewayFilter;
 import org.springframework.cloud.gateway.filter.GatewayFilterChain;
 import org.springframework.cloud.gateway.filter.NettyWriteResponseFilter;
-import org.springframework.cloud.gateway.filter.factory.cache.CachedResponse;
 import org.springframework.core.Ordered;
 import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.core.io.buffer.DefaultDataBuffer;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.ETag;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
@@ -42,15 +44,18 @@ import reactor.core.publisher.Mono;
 import java.net.URI;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 import static org.springframework.cloud.gateway.filter.factory.cache.LocalResponseCacheGatewayFilterFactory.LOCAL_RESPONSE_CACHE_FILTER_APPLIED;
+import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.GATEWAY_ORIGINAL_REQUEST_URL_ATTR;
+import static org.springframework.cloud.gateway.support.ServerWebExchangeUtils.GATEWAY_REQUEST_URL_ATTR;
 
 // Based on org.springframework.cloud.gateway.filter.factory.cache.ResponseCacheGatewayFilter
 @Slf4j
 public class WellKnownResponseCacheGatewayFilter implements GatewayFilter, Ordered {
 
-    private static final List<HttpStatusCode> STATUSES_TO_CACHE =
-            List.of(HttpStatus.OK, HttpStatus.PARTIAL_CONTENT, HttpStatus.MOVED_PERMANENTLY);
+    private static final List<String> NOT_MODIFIED_HEADERS = List.of(HttpHeaders.CACHE_CONTROL,
+            HttpHeaders.CONTENT_LOCATION, HttpHeaders.DATE, HttpHeaders.ETAG, HttpHeaders.EXPIRES, HttpHeaders.VARY);
 
     private final WellKnownResponseCacheManager responseCacheManager;
 
@@ -60,37 +65,92 @@ public class WellKnownResponseCacheGatewayFilter implements GatewayFilter, Order
 
     @Override
     public Mono<Void> filter(ServerWebExchange exchange, GatewayFilterChain chain) {
-        exchange = exchange.mutate()
-                .request(sanitizeRequest(exchange.getRequest()))
-                .build();
         if (!HttpMethod.GET.equals(exchange.getRequest().getMethod())) {
             log.debug("Skipping response caching, not a GET request");
-            return chain.filter(exchange);
+            return chain.filter(exchange.mutate()
+                    .request(sanitizeRequest(exchange.getRequest()))
+                    .build());
         }
         exchange.getAttributes().put(LOCAL_RESPONSE_CACHE_FILTER_APPLIED, true);
-        exchange = exchange.mutate()
-                .request(withoutBody(exchange.getRequest()))
-                .build();
-        String cacheKey = responseCacheManager.generateCacheKey(exchange.getRequest());
-        Optional<CachedResponse> cached = responseCacheManager.getFromCache(cacheKey);
+        /* Cache key depends only on the request path and headers responses vary by, so the request is only sanitized
+         * when it is sent upstream. */
+        String cacheKey = responseCacheManager.getCacheKey(exchange.getRequest());
+        Optional<WellKnownCachedResponse> cached = responseCacheManager.getFromCache(cacheKey);
         if (cached.isPresent()) {
             log.debug("Response found in cache, returning cached response");
+            responseCacheManager.refreshIfNeeded(cacheKey, cached.get());
             return processFromCache(exchange, cached.get());
         }
-        ServerWebExchange cachingExchange = exchange.mutate()
-                .response(new CachingResponseDecorator(exchange.getResponse(), cacheKey))
+        ServerWebExchange cacheMissExchange = exchange.mutate()
+                .request(withoutBody(sanitizeRequest(exchange.getRequest())))
                 .build();
-        return chain.filter(cachingExchange);
+        return responseCacheManager.coalesceUpstreamRequests(
+                cacheKey,
+                cachedResponse -> processFromCache(cacheMissExchange, cachedResponse),
+                () -> {
+                    ServerWebExchange cachingExchange = cacheMissExchange.mutate()
+                            .request(request -> request.headers(headers -> {
+                                /* Responses are cached without content coding and compressed by the cache if needed. */
+                                headers.remove(HttpHeaders.ACCEPT_ENCODING);
+                                /* Full responses are cached, conditional requests are answered by the cache. */
+                                headers.remove(HttpHeaders.IF_NONE_MATCH);
+                                headers.remove(HttpHeaders.IF_MODIFIED_SINCE);
+                            }))
+                            .response(new CachingResponseDecorator(cacheMissExchange, cacheKey))
+                            .build();
+                    return chain.filter(cachingExchange)
+                            .onErrorResume(error -> !cacheMissExchange.getResponse().isCommitted(), error ->
+                                    responseCacheManager.getLastGoodResponse(cacheKey, cacheMissExchange.getRequest(),
+                                                    getUpstreamUri(cacheMissExchange), error.toString())
+                                            .map(lastGood -> processFromCache(cacheMissExchange, lastGood))
+                                            .orElseGet(() -> Mono.error(error)));
+                });
     }
 
-    private Mono<Void> processFromCache(ServerWebExchange exchange, CachedResponse cachedResponse) {
+    private Mono<Void> processFromCache(ServerWebExchange exchange, WellKnownCachedResponse cached) {
+        HttpHeaders requestHeaders = exchange.getRequest().getHeaders();
+        Representation cachedResponse = cached.response(requestHeaders);
+        String age = cached.ageHeaderValue(System.nanoTime());
+        if (isNotModified(requestHeaders, cachedResponse.headers().getETag())) {
+            return processNotModified(exchange, cachedResponse, age);
+        }
         final ServerHttpResponse response = exchange.getResponse();
         response.setStatusCode(cachedResponse.statusCode());
         response.getHeaders().clear();
-        response.getHeaders().addAll(cachedResponse.headers());
-        Flux<DataBuffer> body = Flux.fromIterable(cachedResponse.body())
-                .map(data -> response.bufferFactory().wrap(data));
-        return response.writeWith(body);
+        response.getHeaders().putAll(cachedResponse.headers());
+        response.getHeaders().set(HttpHeaders.AGE, age);
+        return response.writeWith(Mono.fromSupplier(() -> cachedResponse.body(response.bufferFactory())));
+    }
+
+    // As per https://www.rfc-editor.org/rfc/rfc9110#name-if-none-match, using weak comparison
+    private static boolean isNotModified(HttpHeaders requestHeaders, String etag) {
+        if (etag == null) {
+            return false;
+        }
+        ETag responseETag = ETag.create(etag);
+        for (String ifNoneMatch : requestHeaders.getOrEmpty(HttpHeaders.IF_NONE_MATCH)) {
+            for (ETag requestETag : ETag.parse(ifNoneMatch)) {
+                if (requestETag.isWildcard() || requestETag.compare(responseETag, false)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private Mono<Void> processNotModified(ServerWebExchange exchange, Representation cachedResponse, String age) {
+        final ServerHttpResponse response = exchange.getResponse();
+        response.setStatusCode(HttpStatus.NOT_MODIFIED);
+        response.getHeaders().clear();
+        /* Headers that would have been sent in a 200 response, as per https://www.rfc-editor.org/rfc/rfc9110#name-304-not-modified */
+        for (String header : NOT_MODIFIED_HEADERS) {
+            List<String> values = cachedResponse.headers().get(header);
+            if (values != null) {
+                response.getHeaders().addAll(header, values);
+            }
+        }
+        response.getHeaders().set(HttpHeaders.AGE, age);
+        return response.setComplete();
     }
 
     private ServerHttpRequest sanitizeRequest(ServerHttpRequest request) {
@@ -115,6 +175,18 @@ public class WellKnownResponseCacheGatewayFilter implements GatewayFilter, Order
         return new WithoutBodyRequestDecorator(request);
     }
 
+    // Upstream URI before load balancing, so that refreshing the response is load balanced as well
+    private static URI getUpstreamUri(ServerWebExchange exchange) {
+        URI upstreamUri = exchange.getAttribute(GATEWAY_REQUEST_URL_ATTR);
+        Set<URI> originalUris = exchange.getAttributeOrDefault(GATEWAY_ORIGINAL_REQUEST_URL_ATTR, Set.of());
+        for (URI originalUri : originalUris) {
+            if ("lb".equals(originalUri.getScheme())) {
+                upstreamUri = originalUri;
+            }
+        }
+        return upstreamUri;
+    }
+
     @Override
     public int getOrder() {
         return NettyWriteResponseFilter.WRITE_RESPONSE_FILTER_ORDER - 3;
@@ -122,25 +194,33 @@ public class WellKnownResponseCacheGatewayFilter implements GatewayFilter, Order
 
     private class CachingResponseDecorator extends ServerHttpResponseDecorator {
 
+        private final ServerWebExchange exchange;
         private final String cacheKey;
 
-        CachingResponseDecorator(ServerHttpResponse delegate, String cacheKey) {
-            super(delegate);
+        CachingResponseDecorator(ServerWebExchange exchange, String cacheKey) {
+            super(exchange.getResponse());
+            this.exchange = exchange;
             this.cacheKey = cacheKey;
         }
 
         @Override
         public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
             HttpStatusCode statusCode = getStatusCode();
-            if (!STATUSES_TO_CACHE.contains(statusCode)) {
-                log.debug("Not storing response in cache, status code {}", statusCode);
-                return super.writeWith(body);
+            if (statusCode != null && statusCode.is5xxServerError()) {
+                Optional<WellKnownCachedResponse> lastGood = responseCacheManager.getLastGoodResponse(
+                        cacheKey, exchange.getRequest(), getUpstreamUri(exchange), "status code " + statusCode);
+                if (lastGood.isPresent()) {
+                    return Flux.from(body)
+                            .doOnNext(DataBufferUtils::release)
+                            .then(Mono.defer(() -> processFromCache(exchange, lastGood.get())));
+                }
             }
-            if (getHeaders().containsKey(HttpHeaders.VARY)) {
-                log.error("Unexpected {} header in response, not storing response in cache", HttpHeaders.VARY);
+            if (!responseCacheManager.isCacheable(statusCode, getHeaders())) {
                 return super.writeWith(body);
             }
-            return super.writeWith(responseCacheManager.processFromUpstream(cacheKey, Flux.from(body), this));
+            URI upstreamUri = getUpstreamUri(exchange);
+            return super.writeWith(responseCacheManager.processFromUpstream(
+                    cacheKey, exchange.getRequest(), upstreamUri, Flux.from(body), this));
         }
 
     }
@@ -16,19 +16,19 @@
 
 package ee.ria.govsso.inproxy.wellknown.cache;
 
+import ee.ria.govsso.inproxy.configuration.properties.WellKnownCacheConfigurationProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotNull;
 import lombok.Data;
-import org.springframework.cache.Cache;
-import org.springframework.cloud.gateway.config.LocalResponseCacheAutoConfiguration;
 import org.springframework.cloud.gateway.filter.GatewayFilter;
 import org.springframework.cloud.gateway.filter.factory.AbstractGatewayFilterFactory;
-import org.springframework.cloud.gateway.filter.factory.cache.LocalResponseCacheProperties;
-import org.springframework.cloud.gateway.filter.factory.cache.keygenerator.CacheKeyGenerator;
 import org.springframework.cloud.gateway.support.HasRouteId;
 import org.springframework.stereotype.Component;
 import org.springframework.util.unit.DataSize;
 import org.springframework.validation.annotation.Validated;
 
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.List;
 
@@ -37,33 +37,41 @@ import java.util.List;
 public class WellKnownResponseCacheGatewayFilterFactory
 		extends AbstractGatewayFilterFactory<WellKnownResponseCacheGatewayFilterFactory.RouteCacheConfiguration> {
 
-	private final CacheKeyGenerator cacheKeyGenerator;
+	private final WellKnownUpstreamClient upstreamClient;
+	private final WellKnownCacheConfigurationProperties properties;
+	private final WellKnownResponseCacheRegistry registry;
+	private final MeterRegistry meterRegistry;
 
-	public WellKnownResponseCacheGatewayFilterFactory(CacheKeyGenerator cacheKeyGenerator) {
+	public WellKnownResponseCacheGatewayFilterFactory(WellKnownUpstreamClient upstreamClient,
+													  WellKnownCacheConfigurationProperties properties,
+													  WellKnownResponseCacheRegistry registry,
+													  MeterRegistry meterRegistry) {
 		super(WellKnownResponseCacheGatewayFilterFactory.RouteCacheConfiguration.class);
-		this.cacheKeyGenerator = cacheKeyGenerator;
+		this.upstreamClient = upstreamClient;
+		this.properties = properties;
+		this.registry = registry;
+		this.meterRegistry = meterRegistry;
 	}
 
 	@Override
 	public GatewayFilter apply(RouteCacheConfiguration config) {
-		LocalResponseCacheProperties cacheProperties = mapRouteCacheConfig(config);
-
-		Cache cache = LocalResponseCacheAutoConfiguration.createGatewayCacheManager(cacheProperties)
-				.getCache(config.getRouteId() + "-well-known-cache");
-		return new WellKnownResponseCacheGatewayFilter(new WellKnownResponseCacheManager(cacheKeyGenerator, cache));
+		WellKnownResponseCacheManager cacheManager = registry.getOrCreate(config, () -> new WellKnownResponseCacheManager(
+				upstreamClient, config, getSnapshotPath(config), properties.warmUpOnStartup(), meterRegistry));
+		return new WellKnownResponseCacheGatewayFilter(cacheManager);
 	}
 
-	private LocalResponseCacheProperties mapRouteCacheConfig(RouteCacheConfiguration config) {
-
-		LocalResponseCacheProperties responseCacheProperties = new LocalResponseCacheProperties();
-		responseCacheProperties.setTimeToLive(config.getTimeToLive());
-		responseCacheProperties.setSize(config.getSize());
-		return responseCacheProperties;
+	// One file per route, null if last good responses are not stored
+	private Path getSnapshotPath(RouteCacheConfiguration config) {
+		if (properties.storagePath() == null || config.getRouteId() == null) {
+			return null;
+		}
+		return Path.of(properties.storagePath(), config.getRouteId() + ".bin");
 	}
 
 	@Override
 	public List<String> shortcutFieldOrder() {
-		return List.of("timeToLive", "size");
+		return List.of("timeToLive", "size", "refreshAhead", "staleGracePeriod", "coalescingTimeout", "maxVariants",
+				"maxStaleness", "keySetProbeInterval");
 	}
 
 	@Validated
@@ -72,6 +80,18 @@ public class WellKnownResponseCacheGatewayFilterFactory
 
 		@NotNull private DataSize size;
 		@NotNull private Duration timeToLive;
+		// How long before expiry a cached response is refreshed in the background
+		@NotNull private Duration refreshAhead = Duration.ofMinutes(1);
+		// How long after expiry a cached response is still served if refreshing it fails
+		@NotNull private Duration staleGracePeriod = Duration.ofMinutes(10);
+		// How long concurrent requests for a response that is not cached wait for the upstream request of the first one
+		@NotNull private Duration coalescingTimeout = Duration.ofSeconds(5);
+		// Maximum number of variants of a response by request headers listed in the Vary header of the response
+		@Min(1) private int maxVariants = 10;
+		// How old the last good response may be for serving it if upstream fails and the response is not cached
+		@NotNull private Duration maxStaleness = Duration.ofDays(1);
+		// How often cached JSON Web Key Sets are checked in upstream for changed keys, not checked if null
+		private Duration keySetProbeInterval;
 		private String routeId;
 
 	}
@@ -16,63 +16,618 @@
 
 package ee.ria.govsso.inproxy.wellknown.cache;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Policy.VarExpiration;
+import ee.ria.govsso.inproxy.wellknown.cache.WellKnownResponseCacheGatewayFilterFactory.RouteCacheConfiguration;
+import ee.ria.govsso.inproxy.wellknown.cache.WellKnownResponseSnapshotFile.LastGoodResponse;
+import ee.ria.govsso.inproxy.wellknown.cache.WellKnownResponseSnapshotFile.Snapshot;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.cache.Cache;
-import org.springframework.cloud.gateway.filter.factory.cache.CachedResponse;
-import org.springframework.cloud.gateway.filter.factory.cache.keygenerator.CacheKeyGenerator;
 import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.ResponseEntity;
 import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.http.server.reactive.ServerHttpResponse;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Comparator;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 //Based on org.springframework.cloud.gateway.filter.factory.cache.ResponseCacheManager
 @Slf4j
 public class WellKnownResponseCacheManager {
 
-	private final CacheKeyGenerator cacheKeyGenerator;
-	private final Cache cache;
+	private static final String VARY_WILDCARD = "*";
+	private static final List<HttpStatusCode> STATUSES_TO_CACHE =
+			List.of(HttpStatus.OK, HttpStatus.PARTIAL_CONTENT, HttpStatus.MOVED_PERMANENTLY);
+	private static final Duration REFRESH_TIMEOUT = Duration.ofSeconds(10);
+	private static final Duration REFRESH_RETRY_INTERVAL = Duration.ofSeconds(5);
+	// Last good responses are kept in cache until refreshing them has been retried and the retry has timed out
+	private static final Duration LAST_GOOD_RESPONSE_RETENTION = REFRESH_RETRY_INTERVAL.plus(REFRESH_TIMEOUT);
+	private static final String COALESCED_REQUESTS_METRIC = "well.known.response.cache.coalesced.requests";
+	private static final String REJECTED_VARIANTS_METRIC = "well.known.response.cache.rejected.variants";
+	private static final String STALE_RESPONSES_METRIC = "well.known.response.cache.stale.responses";
+	private static final String KEY_SET_ROTATIONS_METRIC = "well.known.response.cache.key.set.rotations";
+	private static final String KEY_SET_PROBES_METRIC = "well.known.response.cache.key.set.probes";
 
-	public WellKnownResponseCacheManager(CacheKeyGenerator cacheKeyGenerator, Cache cache) {
-		this.cacheKeyGenerator = cacheKeyGenerator;
-		this.cache = cache;
+	private final String routeId;
+	private final RouteCacheConfiguration config;
+	private final WellKnownCacheKeys cacheKeys = new WellKnownCacheKeys();
+	private final WellKnownUpstreamClient upstreamClient;
+	private final Cache<String, WellKnownCachedResponse> cache;
+	private final VarExpiration<String, WellKnownCachedResponse> expiration;
+	private final WellKnownResponseVariants variants;
+	private final Duration timeToLive;
+	private final long refreshAfterNanos;
+	private final long expireAfterNanos;
+	// Null if key sets of cached responses are not probed
+	private final Duration keySetProbeInterval;
+	// Zero if key sets of cached responses are not probed
+	private final long keySetProbeIntervalNanos;
+	// Last good response for each cache key, served if upstream fails after the cached response has expired
+	private final Map<String, LastGoodResponse> lastGoodResponses = new ConcurrentHashMap<>();
+	private final long maxStalenessNanos;
+	// Null if last good responses are not stored in a file
+	private final Path snapshotPath;
+	private final AtomicBoolean snapshotWriteScheduled = new AtomicBoolean();
+	// False until responses loaded from file have been requested again from upstream, if enabled
+	private volatile boolean warmedUp = true;
+	// Null if warming up was not started
+	private volatile Disposable warmUpTask;
+	// True once the cache has been replaced by the cache of a new filter of the route
+	private volatile boolean closed;
+	// Upstream requests in progress for cache keys that are not cached, completed when the response is cached
+	private final Map<String, Sinks.One<WellKnownCachedResponse>> upstreamRequests = new ConcurrentHashMap<>();
+	private final Duration coalescingTimeout;
+	private final Counter coalescedCounter;
+	private final Counter coalescingFallbackCounter;
+	private final Counter rejectedVariantsCounter;
+	private final Counter staleResponsesCounter;
+	private final Counter keySetRotationsCounter;
+	private final Timer unchangedKeySetProbeTimer;
+	private final Timer rotatedKeySetProbeTimer;
+	private final Timer failedKeySetProbeTimer;
+
+	public WellKnownResponseCacheManager(WellKnownUpstreamClient upstreamClient,
+										 RouteCacheConfiguration config,
+										 Path snapshotPath,
+										 boolean warmUpOnStartup,
+										 MeterRegistry meterRegistry) {
+		this.routeId = config.getRouteId();
+		this.config = config;
+		this.upstreamClient = upstreamClient;
+		// Responses are refreshed in the background once they are about to expire and served from cache while
+		// refreshing, also during the grace period after expiry if refreshing fails. Expiry is counted from when the
+		// response was received from upstream, which is earlier than storing it for responses loaded from file.
+		this.expireAfterNanos = config.getTimeToLive().plus(config.getStaleGracePeriod()).toNanos();
+		this.cache = Caffeine.newBuilder()
+				.maximumWeight(config.getSize().toBytes())
+				.<String, WellKnownCachedResponse>weigher((key, cached) -> cached.weight())
+				.expireAfter(Expiry.<String, WellKnownCachedResponse>writing((key, cached) ->
+						Duration.ofNanos(Math.max(0, expireAfterNanos - cached.ageNanos(System.nanoTime())))))
+				.build();
+		this.expiration = cache.policy().expireVariably().orElseThrow();
+		this.variants = new WellKnownResponseVariants(config.getMaxVariants());
+		this.timeToLive = config.getTimeToLive();
+		this.refreshAfterNanos = Math.max(0, config.getTimeToLive().minus(config.getRefreshAhead()).toNanos());
+		this.keySetProbeInterval = config.getKeySetProbeInterval();
+		this.keySetProbeIntervalNanos = config.getKeySetProbeInterval() != null
+				? config.getKeySetProbeInterval().toNanos()
+				: 0;
+		this.maxStalenessNanos = config.getMaxStaleness().toNanos();
+		this.snapshotPath = snapshotPath;
+		this.coalescingTimeout = config.getCoalescingTimeout();
+		this.coalescedCounter = coalescedRequestsCounter(meterRegistry, config.getRouteId(), "cached");
+		this.coalescingFallbackCounter = coalescedRequestsCounter(meterRegistry, config.getRouteId(), "fallback");
+		this.rejectedVariantsCounter = Counter.builder(REJECTED_VARIANTS_METRIC)
+				.description("Number of responses not stored in cache, because the maximum number of variants of the " +
+						"response by request headers listed in the Vary header was reached")
+				.tag("route", routeTag(config.getRouteId()))
+				.register(meterRegistry);
+		this.staleResponsesCounter = Counter.builder(STALE_RESPONSES_METRIC)
+				.description("Number of times the last good response was served and kept in cache, because " +
+						"upstream failed and the response was not cached")
+				.tag("route", routeTag(config.getRouteId()))
+				.register(meterRegistry);
+		this.keySetRotationsCounter = Counter.builder(KEY_SET_ROTATIONS_METRIC)
+				.description("Number of cached JSON Web Key Sets replaced, because probing upstream found a " +
+						"different set of keys")
+				.tag("route", routeTag(config.getRouteId()))
+				.register(meterRegistry);
+		this.unchangedKeySetProbeTimer = keySetProbeTimer(meterRegistry, config.getRouteId(), "unchanged");
+		this.rotatedKeySetProbeTimer = keySetProbeTimer(meterRegistry, config.getRouteId(), "rotated");
+		this.failedKeySetProbeTimer = keySetProbeTimer(meterRegistry, config.getRouteId(), "failed");
+		loadSnapshot();
+		if (warmUpOnStartup) {
+			warmUp();
+		}
 	}
 
-	public String generateCacheKey(ServerHttpRequest request) {
-		return cacheKeyGenerator.generateKey(request);
+	public String getRouteId() {
+		return routeId;
 	}
 
+	RouteCacheConfiguration getConfiguration() {
+		return config;
+	}
 
-	public Flux<DataBuffer> processFromUpstream(String cacheKey, Flux<DataBuffer> body, ServerHttpResponse response) {
-		CachedResponse.Builder cachedResponseBuilder = CachedResponse.create(response.getStatusCode())
-				.headers(response.getHeaders());
+	// Stops warming up and refreshing in the background and writes last good responses to file right away, so that
+	// the cache replacing this one loads them.
+	void close() {
+		closed = true;
+		Disposable warmUp = warmUpTask;
+		if (warmUp != null) {
+			warmUp.dispose();
+		}
+		if (snapshotPath != null) {
+			writeSnapshot();
+		}
+	}
+
+	private static String routeTag(String routeId) {
+		return routeId != null ? routeId : "unknown";
+	}
+
+	private static Counter coalescedRequestsCounter(MeterRegistry meterRegistry, String routeId, String result) {
+		return Counter.builder(COALESCED_REQUESTS_METRIC)
+				.description("Number of requests that waited for an upstream request of another request for the same " +
+						"response, by whether the response was served from cache or they fell back to own upstream request")
+				.tag("route", routeTag(routeId))
+				.tag("result", result)
+				.register(meterRegistry);
+	}
+
+	private static Timer keySetProbeTimer(MeterRegistry meterRegistry, String routeId, String result) {
+		return Timer.builder(KEY_SET_PROBES_METRIC)
+				.description("Duration of upstream requests checking whether the keys of cached JSON Web Key Sets " +
+						"have changed, by whether the keys were unchanged, rotated or the request failed")
+				.tag("route", routeTag(routeId))
+				.tag("result", result)
+				.register(meterRegistry);
+	}
+
+	// Includes values of request headers that responses have varied by. Nothing is cached for the key if the upstream
+	// path of the request is not known yet, which is learned when the response is cached.
+	public String getCacheKey(ServerHttpRequest request) {
+		return getVariantKey(cacheKeys.getPrimaryKey(request), request.getHeaders());
+	}
+
+	private String getVariantKey(String primaryKey, HttpHeaders requestHeaders) {
+		return WellKnownCacheKeys.getVariantKey(primaryKey, variants.varyHeaders(primaryKey), requestHeaders);
+	}
+
+	public boolean isCacheable(HttpStatusCode statusCode, HttpHeaders headers) {
+		if (!STATUSES_TO_CACHE.contains(statusCode)) {
+			log.debug("Not storing response in cache, status code {}", statusCode);
+			return false;
+		}
+		if (headers.getVary().contains(VARY_WILDCARD)) {
+			log.debug("Not storing response in cache, {} header is {}", HttpHeaders.VARY, VARY_WILDCARD);
+			return false;
+		}
+		return true;
+	}
+
+	public Flux<DataBuffer> processFromUpstream(String cacheKey,
+												ServerHttpRequest request,
+												URI upstreamUri,
+												Flux<DataBuffer> body,
+												ServerHttpResponse response) {
+		HttpStatusCode statusCode = response.getStatusCode();
+		HttpHeaders headers = new HttpHeaders();
+		headers.addAll(response.getHeaders());
+		HttpHeaders varyRequestHeaders = WellKnownCachedResponse.varyRequestHeaders(request.getHeaders(),
+				WellKnownCachedResponse.varyHeaders(headers));
+		// Chunks are copied, because their memory is reused once they have been written to the client
+		ByteArrayOutputStream cachedBody = new ByteArrayOutputStream();
 
 		return body.map(dataBuffer -> {
-			ByteBuffer byteBuffer = dataBuffer.toByteBuffer().asReadOnlyBuffer();
-			cachedResponseBuilder.appendToBody(byteBuffer);
+			int length = dataBuffer.readableByteCount();
+			byte[] chunk = new byte[length];
+			dataBuffer.toByteBuffer(dataBuffer.readPosition(), ByteBuffer.wrap(chunk), 0, length);
+			cachedBody.writeBytes(chunk);
 			return dataBuffer;
-		}).doOnComplete(() -> {
-			CachedResponse responseToCache = cachedResponseBuilder.build();
-			saveInCache(cacheKey, responseToCache);
-		});
+		}).doOnComplete(() -> saveInCache(cacheKey, request, upstreamUri, new WellKnownCachedResponse(statusCode, headers,
+				cachedBody.toByteArray(), upstreamUri, varyRequestHeaders, System.nanoTime(), timeToLive, keySetProbeInterval)));
+	}
+
+	// Concurrent requests for a response that is not cached wait for the upstream request of the first one instead of
+	// each making their own. If the response is not cached within the coalescing timeout, for example because the
+	// upstream request fails or the response is not cacheable, they fall back to making their own upstream requests.
+	public Mono<Void> coalesceUpstreamRequests(String cacheKey,
+											   Function<WellKnownCachedResponse, Mono<Void>> fromCache,
+											   Supplier<Mono<Void>> fromUpstream) {
+		Sinks.One<WellKnownCachedResponse> upstreamRequest = Sinks.one();
+		Sinks.One<WellKnownCachedResponse> inProgress = upstreamRequests.putIfAbsent(cacheKey, upstreamRequest);
+		if (inProgress == null) {
+			return fromUpstream.get().doFinally(signal -> {
+				upstreamRequests.remove(cacheKey, upstreamRequest);
+				// Releases waiting requests if the response was not cached
+				upstreamRequest.tryEmitEmpty();
+			});
+		}
+		return inProgress.asMono()
+				.timeout(coalescingTimeout, Mono.empty())
+				.map(Optional::of)
+				.defaultIfEmpty(Optional.empty())
+				.flatMap(cached -> {
+					if (cached.isPresent()) {
+						log.debug("Response cached by a concurrent request, returning cached response");
+						coalescedCounter.increment();
+						return fromCache.apply(cached.get());
+					}
+					log.debug("Response not cached by a concurrent request in time, making upstream request");
+					coalescingFallbackCounter.increment();
+					return fromUpstream.get();
+				});
 	}
 
-	public Optional<CachedResponse> getFromCache(String key) {
+	public Optional<WellKnownCachedResponse> getFromCache(String key) {
 		try {
-			return Optional.ofNullable(cache.get(key, CachedResponse.class));
+			WellKnownCachedResponse cached = cache.getIfPresent(key);
+			if (cached != null) {
+				cached.recordHit();
+			}
+			return Optional.ofNullable(cached);
 		} catch (RuntimeException anyException) {
 			log.error("Error reading from cache. Data will not come from cache.", anyException);
 			return Optional.empty();
 		}
 	}
 
-	private void saveInCache(String cacheKey, CachedResponse cachedResponse) {
+	// Starts refreshing the cached response in the background if it is about to expire or has expired, the current
+	// response is kept until the refresh succeeds. Otherwise, cached JSON Web Key Sets are checked in upstream more
+	// often than they expire, so that rotated keys are served soon after rotation.
+	public void refreshIfNeeded(String cacheKey, WellKnownCachedResponse cached) {
+		if (closed) {
+			return;
+		}
+		long now = System.nanoTime();
+		if (!cached.startRefresh(now, refreshAfterNanos)) {
+			if (keySetProbeIntervalNanos > 0 && cached.startKeySetProbe(now, keySetProbeIntervalNanos)) {
+				probeKeySet(cacheKey, cached, now);
+			}
+			return;
+		}
+		log.debug("Refreshing cached response from {}", cached.upstreamUri());
+		upstreamClient.get(cached.upstreamUri(), cached.varyRequestHeaders())
+				.timeout(REFRESH_TIMEOUT)
+				.subscribe(
+						response -> onRefreshed(cacheKey, cached, response),
+						error -> onRefreshFailed(cacheKey, cached, error.toString()));
+	}
+
+	// Last good response, if it is not older than the maximum staleness, for serving it when upstream fails. It is
+	// also served to requests waiting for the same upstream request and kept in cache, so that following requests are
+	// served from cache while refreshing it is retried in the background instead of each making an upstream request.
+	public Optional<WellKnownCachedResponse> getLastGoodResponse(String requestCacheKey,
+																 ServerHttpRequest request,
+																 URI upstreamUri,
+																 String reason) {
+		String primaryKey = WellKnownCacheKeys.getPrimaryKey(request, upstreamUri);
+		LastGoodResponse lastGood = lastGoodResponses.get(getVariantKey(primaryKey, request.getHeaders()));
+		if (lastGood == null) {
+			return Optional.empty();
+		}
+		WellKnownCachedResponse response = lastGood.response();
+		long now = System.nanoTime();
+		if (response.ageNanos(now) > maxStalenessNanos) {
+			lastGoodResponses.remove(lastGood.cacheKey(), lastGood);
+			return Optional.empty();
+		}
+		log.warn("Upstream request to {} failed, serving last good response: {}", response.upstreamUri(), reason);
+		staleResponsesCounter.increment();
+		boolean retained = retainInCache(lastGood, now);
+		Sinks.One<WellKnownCachedResponse> upstreamRequest = upstreamRequests.get(requestCacheKey);
+		// Waiting requests may have different values of the request headers the response varies by
+		if (upstreamRequest != null && retained
+				&& (lastGood.cacheKey().equals(requestCacheKey) || response.varyHeaders().isEmpty())) {
+			upstreamRequest.tryEmitValue(response);
+		}
+		return Optional.of(response);
+	}
+
+	private boolean retainInCache(LastGoodResponse lastGood, long now) {
+		try {
+			if (!variants.add(lastGood.primaryKey(), lastGood.response().varyHeaders(), lastGood.cacheKey(),
+					cache.asMap()::containsKey, cache::invalidate)) {
+				return false;
+			}
+			lastGood.response().refreshFailed(now + REFRESH_RETRY_INTERVAL.toNanos());
+			expiration.putIfAbsent(lastGood.cacheKey(), lastGood.response(), LAST_GOOD_RESPONSE_RETENTION);
+			return true;
+		} catch (RuntimeException anyException) {
+			log.error("Error writing into cache. Data will not be cached", anyException);
+			return false;
+		}
+	}
+
+	private void probeKeySet(String cacheKey, WellKnownCachedResponse cached, long startNanos) {
+		log.debug("Probing key set of cached response from {}", cached.upstreamUri());
+		upstreamClient.get(cached.upstreamUri(), cached.varyRequestHeaders())
+				.timeout(REFRESH_TIMEOUT)
+				.subscribe(
+						response -> onKeySetProbed(cacheKey, cached, response, startNanos),
+						error -> onKeySetProbeFailed(cached, error.toString(), startNanos));
+	}
+
+	// The cached response is only replaced if the keys have changed, otherwise it expires and is refreshed as usual
+	private void onKeySetProbed(String cacheKey,
+								WellKnownCachedResponse cached,
+								ResponseEntity<byte[]> response,
+								long startNanos) {
+		if (!isCacheable(response.getStatusCode(), response.getHeaders())) {
+			onKeySetProbeFailed(cached, "status code " + response.getStatusCode(), startNanos);
+			return;
+		}
+		// Only the key IDs are compared, the cached response with compressed variants and ETags is built on rotation
+		Set<String> keyIds = WellKnownKeySet.keyIds(response.getStatusCode(), response.getHeaders(), response.getBody());
+		if (cached.keyIds().equals(keyIds)) {
+			unchangedKeySetProbeTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+			cached.keySetProbeUnchanged(startNanos);
+			return;
+		}
+		rotatedKeySetProbeTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+		log.info("Keys of cached response from {} have changed, replacing cached response", cached.upstreamUri());
+		keySetRotationsCounter.increment();
+		replaceInCache(cacheKey, cached, newCachedResponse(cached, response));
+	}
+
+	private void onKeySetProbeFailed(WellKnownCachedResponse cached, String reason, long startNanos) {
+		failedKeySetProbeTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+		log.warn("Failed to probe key set of cached response from {}, serving cached response: {}",
+				cached.upstreamUri(), reason);
+		cached.keySetProbeFinished();
+	}
+
+	private void onRefreshed(String cacheKey, WellKnownCachedResponse cached, ResponseEntity<byte[]> response) {
+		if (!isCacheable(response.getStatusCode(), response.getHeaders())) {
+			onRefreshFailed(cacheKey, cached, "status code " + response.getStatusCode());
+			return;
+		}
+		replaceInCache(cacheKey, cached, newCachedResponse(cached, response));
+	}
+
+	private WellKnownCachedResponse newCachedResponse(WellKnownCachedResponse cached, ResponseEntity<byte[]> response) {
+		return new WellKnownCachedResponse(response.getStatusCode(), response.getHeaders(), response.getBody(),
+				cached.upstreamUri(), cached.varyRequestHeaders(), System.nanoTime(), timeToLive, keySetProbeInterval);
+	}
+
+	// Requests are served either the cached or the refreshed response, never a mix of both
+	private void replaceInCache(String cacheKey, WellKnownCachedResponse cached, WellKnownCachedResponse refreshed) {
 		try {
+			if (!refreshed.varyHeaders().equals(cached.varyHeaders())) {
+				// Cache key depends on the headers, so the response is requested again with the next request
+				log.debug("Response from {} varies by different request headers, removing cached response",
+						cached.upstreamUri());
+				cache.asMap().remove(cacheKey, cached);
+				return;
+			}
+			// Not stored if the response has been evicted in the meantime
+			if (cache.asMap().replace(cacheKey, cached, refreshed)) {
+				lastGoodResponses.computeIfPresent(cacheKey,
+						(key, lastGood) -> new LastGoodResponse(key, lastGood.primaryKey(), refreshed));
+				scheduleSnapshotWrite();
+			}
+		} catch (RuntimeException anyException) {
+			log.error("Error writing into cache. Data will not be cached", anyException);
+		}
+	}
+
+	private void onRefreshFailed(String cacheKey, WellKnownCachedResponse cached, String reason) {
+		long now = System.nanoTime();
+		cached.refreshFailed(now + REFRESH_RETRY_INTERVAL.toNanos());
+		// Last good response kept in cache after it has expired, see getLastGoodResponse
+		if (cached.ageNanos(now) >= expireAfterNanos && cached.ageNanos(now) <= maxStalenessNanos
+				&& cache.asMap().get(cacheKey) == cached) {
+			log.warn("Failed to refresh cached response from {}, serving last good response: {}",
+					cached.upstreamUri(), reason);
+			expiration.setExpiresAfter(cacheKey, LAST_GOOD_RESPONSE_RETENTION);
+			return;
+		}
+		log.warn("Failed to refresh cached response from {}, serving cached response until it expires: {}",
+				cached.upstreamUri(), reason);
+	}
+
+	// Stored under a cache key of the upstream path that includes values of request headers the response varies by,
+	// which differs from the cache key of the request if the upstream path of the request was not known yet or the
+	// response varies by headers it has not varied by before.
+	private void saveInCache(String requestCacheKey,
+							 ServerHttpRequest request,
+							 URI upstreamUri,
+							 WellKnownCachedResponse cachedResponse) {
+		String primaryKey = cacheKeys.learnPrimaryKey(request, upstreamUri);
+		String cacheKey = WellKnownCacheKeys.getVariantKey(primaryKey, cachedResponse.varyHeaders(), request.getHeaders());
+		boolean stored = store(primaryKey, cacheKey, cachedResponse);
+		Sinks.One<WellKnownCachedResponse> upstreamRequest = upstreamRequests.get(requestCacheKey);
+		if (upstreamRequest == null) {
+			return;
+		}
+		// Waiting requests may have different values of the request headers the response varies by
+		if (stored && (cacheKey.equals(requestCacheKey) || cachedResponse.varyHeaders().isEmpty())) {
+			upstreamRequest.tryEmitValue(cachedResponse);
+		} else {
+			upstreamRequest.tryEmitEmpty();
+		}
+	}
+
+	private boolean store(String primaryKey, String cacheKey, WellKnownCachedResponse cachedResponse) {
+		try {
+			if (!variants.add(primaryKey, cachedResponse.varyHeaders(), cacheKey,
+					cache.asMap()::containsKey, cache::invalidate)) {
+				log.debug("Not storing response in cache, maximum number of variants reached");
+				rejectedVariantsCounter.increment();
+				return false;
+			}
 			cache.put(cacheKey, cachedResponse);
+			lastGoodResponses.put(cacheKey, new LastGoodResponse(cacheKey, primaryKey, cachedResponse));
+			removeStaleLastGoodResponses();
+			scheduleSnapshotWrite();
+			return true;
 		} catch (RuntimeException anyException) {
 			log.error("Error writing into cache. Data will not be cached", anyException);
+			return false;
+		}
+	}
+
+	// Cached responses sorted by cache key
+	public List<WellKnownCacheEntry> getEntries() {
+		long now = System.nanoTime();
+		return cache.asMap().entrySet().stream()
+				.map(entry -> new WellKnownCacheEntry(
+						entry.getKey(),
+						entry.getValue().weight(),
+						TimeUnit.NANOSECONDS.toSeconds(entry.getValue().ageNanos(now)),
+						entry.getValue().hits(),
+						entry.getValue().response().headers().getETag()))
+				.sorted(Comparator.comparing(WellKnownCacheEntry::key))
+				.toList();
+	}
+
+	// Removes all cached responses or the one with the given cache key, so that they are requested from upstream with
+	// the next request. Last good responses are kept for serving them if upstream fails.
+	public int purge(String cacheKey) {
+		List<String> cacheKeys = cacheKey != null ? List.of(cacheKey) : List.copyOf(cache.asMap().keySet());
+		int purged = 0;
+		for (String key : cacheKeys) {
+			if (cache.asMap().remove(key) != null) {
+				purged++;
+			}
+		}
+		log.info("Purged {} cached response(s) of route {}", purged, routeTag(routeId));
+		return purged;
+	}
+
+	// Requests all responses that have been cached, or the one with the given cache key, again from upstream and
+	// replaces the cached responses. Returns the number of responses stored in cache.
+	public Mono<Integer> warm(String cacheKey) {
+		return warm(lastGood -> cacheKey == null || cacheKey.equals(lastGood.cacheKey()));
+	}
+
+	public boolean isWarmedUp() {
+		return warmedUp;
+	}
+
+	// Responses loaded from file that have expired are requested from upstream before the first request for them
+	private void warmUp() {
+		warmedUp = false;
+		warmUpTask = warm(lastGood -> !cache.asMap().containsKey(lastGood.cacheKey()))
+				.doFinally(signal -> warmedUp = true)
+				.subscribe(warmed -> log.info("Warmed up {} cached response(s) of route {}", warmed,
+						routeTag(routeId)));
+	}
+
+	private Mono<Integer> warm(Predicate<LastGoodResponse> filter) {
+		return Flux.fromIterable(List.copyOf(lastGoodResponses.values()))
+				.filter(lastGood -> lastGood.response().upstreamUri() != null && filter.test(lastGood))
+				.flatMap(this::warm)
+				.reduce(0, (warmed, stored) -> stored ? warmed + 1 : warmed);
+	}
+
+	private Mono<Boolean> warm(LastGoodResponse lastGood) {
+		WellKnownCachedResponse previous = lastGood.response();
+		return upstreamClient.get(previous.upstreamUri(), previous.varyRequestHeaders())
+				.timeout(REFRESH_TIMEOUT)
+				.map(response -> onWarmed(lastGood, response))
+				.onErrorResume(error -> {
+					log.warn("Failed to warm cached response from {}: {}", previous.upstreamUri(), error.toString());
+					return Mono.just(false);
+				});
+	}
+
+	private boolean onWarmed(LastGoodResponse lastGood, ResponseEntity<byte[]> response) {
+		WellKnownCachedResponse previous = lastGood.response();
+		if (!isCacheable(response.getStatusCode(), response.getHeaders())) {
+			log.warn("Failed to warm cached response from {}: status code {}", previous.upstreamUri(),
+					response.getStatusCode());
+			return false;
+		}
+		WellKnownCachedResponse warmed = newCachedResponse(previous, response);
+		if (!warmed.varyHeaders().equals(previous.varyHeaders())) {
+			// Cache key depends on the headers, so the response is requested again with the next request
+			log.debug("Response from {} varies by different request headers, not storing response in cache",
+					previous.upstreamUri());
+			return false;
+		}
+		return store(lastGood.primaryKey(), lastGood.cacheKey(), warmed);
+	}
+
+	// Also done when storing a response, so that responses that are no longer requested are not kept in memory
+	private void removeStaleLastGoodResponses() {
+		long now = System.nanoTime();
+		lastGoodResponses.values().removeIf(lastGood -> lastGood.response().ageNanos(now) > maxStalenessNanos
+				&& !cache.asMap().containsKey(lastGood.cacheKey()));
+	}
+
+	// Responses stored in the meantime are written together, off the thread serving the request
+	private void scheduleSnapshotWrite() {
+		if (snapshotPath == null || closed || !snapshotWriteScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		Mono.fromRunnable(this::writeSnapshot)
+				.subscribeOn(Schedulers.boundedElastic())
+				.subscribe();
+	}
+
+	private synchronized void writeSnapshot() {
+		snapshotWriteScheduled.set(false);
+		try {
+			WellKnownResponseSnapshotFile.write(snapshotPath,
+					new Snapshot(cacheKeys.primaryKeysByRequestPath(), List.copyOf(lastGoodResponses.values())));
+		} catch (IOException | RuntimeException e) {
+			log.warn("Unable to store last good responses in file '{}': {}", snapshotPath, e.toString());
+		}
+	}
+
+	// Responses that have not expired are cached, older ones are only served if upstream fails
+	private void loadSnapshot() {
+		if (snapshotPath == null || !Files.exists(snapshotPath)) {
+			return;
+		}
+		try {
+			Snapshot snapshot = WellKnownResponseSnapshotFile.read(snapshotPath, timeToLive, keySetProbeInterval);
+			cacheKeys.addPrimaryKeys(snapshot.primaryKeysByRequestPath());
+			long now = System.nanoTime();
+			for (LastGoodResponse lastGood : snapshot.responses()) {
+				long ageNanos = lastGood.response().ageNanos(now);
+				if (ageNanos > maxStalenessNanos) {
+					continue;
+				}
+				lastGoodResponses.put(lastGood.cacheKey(), lastGood);
+				if (ageNanos < expireAfterNanos && variants.add(lastGood.primaryKey(), lastGood.response().varyHeaders(),
+						lastGood.cacheKey(), cache.asMap()::containsKey, cache::invalidate)) {
+					cache.put(lastGood.cacheKey(), lastGood.response());
+				}
+			}
+			log.info("Loaded {} last good response(s) from file '{}'", lastGoodResponses.size(), snapshotPath);
+		} catch (IOException | RuntimeException e) {
+			log.warn("Unable to load last good responses from file '{}': {}", snapshotPath, e.toString());
 		}
 	}
 
@@ -0,0 +1,43 @@
+package ee.ria.govsso.inproxy.wellknown.cache;
+
+import ee.ria.govsso.inproxy.wellknown.cache.WellKnownResponseCacheGatewayFilterFactory.RouteCacheConfiguration;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// Caches of routes with the WellKnownResponseCache filter, for inspecting and managing them outside of requests.
+// Filters are created again when routes are refreshed, the cache of a route is reused by the new filter as long as the
+// configuration of the route is unchanged. Otherwise the previous cache is closed before the new one is created, so that
+// the new one loads the last good responses stored by the previous one.
+@Component
+public class WellKnownResponseCacheRegistry {
+
+    private final Map<String, WellKnownResponseCacheManager> cacheManagersByRouteId = new ConcurrentHashMap<>();
+
+    WellKnownResponseCacheManager getOrCreate(RouteCacheConfiguration config,
+                                              Supplier<WellKnownResponseCacheManager> cacheManagerFactory) {
+        if (config.getRouteId() == null) {
+            return cacheManagerFactory.get();
+        }
+        return cacheManagersByRouteId.compute(config.getRouteId(), (routeId, previous) -> {
+            if (previous != null && previous.getConfiguration().equals(config)) {
+                return previous;
+            }
+            if (previous != null) {
+                previous.close();
+            }
+            return cacheManagerFactory.get();
+        });
+    }
+
+    public Map<String, WellKnownResponseCacheManager> getCacheManagers() {
+        return Map.copyOf(cacheManagersByRouteId);
+    }
+
+    public Optional<WellKnownResponseCacheManager> getCacheManager(String routeId) {
+        return Optional.ofNullable(cacheManagersByRouteId.get(routeId));
+    }
+}
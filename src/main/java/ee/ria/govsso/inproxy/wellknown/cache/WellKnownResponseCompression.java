@@ -0,0 +1,95 @@
+package ee.ria.govsso.inproxy.wellknown.cache;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+// Compresses cached responses once when they are stored, so that clients accepting gzip encoding can be served the
+// compressed response without compressing it on every request.
+final class WellKnownResponseCompression {
+
+    static final String GZIP = "gzip";
+    // Smaller responses would not get meaningfully smaller
+    private static final int MIN_SIZE_TO_COMPRESS = 256;
+
+    private WellKnownResponseCompression() {
+    }
+
+    // Returns the gzip-encoded body of the response or null if the response is not worth compressing.
+    static byte[] compress(HttpStatusCode statusCode, HttpHeaders headers, byte[] body) {
+        if (!isCompressible(statusCode, headers, body)) {
+            return null;
+        }
+        byte[] compressed = gzip(body);
+        return compressed.length < body.length ? compressed : null;
+    }
+
+    // Whether gzip is an acceptable content coding as per https://www.rfc-editor.org/rfc/rfc9110#name-accept-encoding
+    static boolean acceptsGzip(HttpHeaders requestHeaders) {
+        Boolean gzipAccepted = null;
+        boolean anyAccepted = false;
+        for (String value : requestHeaders.getOrEmpty(HttpHeaders.ACCEPT_ENCODING)) {
+            for (String element : StringUtils.split(value, ',')) {
+                String[] parameters = StringUtils.split(element, ';');
+                if (parameters.length == 0) {
+                    continue;
+                }
+                String coding = parameters[0].trim();
+                boolean accepted = !isZeroQuality(parameters);
+                if (GZIP.equalsIgnoreCase(coding) || "x-gzip".equalsIgnoreCase(coding)) {
+                    gzipAccepted = accepted;
+                } else if ("*".equals(coding)) {
+                    anyAccepted = accepted;
+                }
+            }
+        }
+        return gzipAccepted != null ? gzipAccepted : anyAccepted;
+    }
+
+    private static boolean isZeroQuality(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = StringUtils.deleteWhitespace(parameters[i]);
+            if (StringUtils.startsWithIgnoreCase(parameter, "q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2)) == 0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isCompressible(HttpStatusCode statusCode, HttpHeaders headers, byte[] body) {
+        if (!HttpStatus.OK.equals(statusCode) || headers.containsKey(HttpHeaders.CONTENT_ENCODING)
+                || body.length < MIN_SIZE_TO_COMPRESS) {
+            return false;
+        }
+        MediaType contentType;
+        try {
+            contentType = headers.getContentType();
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return contentType != null && ("text".equals(contentType.getType())
+                || MediaType.APPLICATION_JSON.isCompatibleWith(contentType)
+                || contentType.getSubtype().endsWith("+json"));
+    }
+
+    private static byte[] gzip(byte[] body) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return compressed.toByteArray();
+    }
+}
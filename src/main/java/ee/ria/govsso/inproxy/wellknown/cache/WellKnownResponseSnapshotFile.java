@@ -0,0 +1,205 @@
+package ee.ria.govsso.inproxy.wellknown.cache;
+
+import ee.ria.govsso.inproxy.wellknown.cache.WellKnownCachedResponse.Representation;
+import lombok.experimental.UtilityClass;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatusCode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Last good responses of a route, stored so that they can be served when upstream is not available after a restart.
+// All values are big-endian:
+//
+//   int magic, int version, int requestPathCount, requestPathCount * (string requestPath, string primaryKey),
+//   int responseCount,
+//   responseCount * (string cacheKey, string primaryKey, long storedAt (epoch milliseconds), int statusCode,
+//                    string upstreamUri, headers responseHeaders, headers varyRequestHeaders, bytes body),
+//   int crc32 (of all preceding bytes)
+//
+// where string and bytes are an int length (-1 for null) followed by UTF-8 encoded characters or raw bytes, and headers
+// is an int count followed by count * (string name, string value).
+@UtilityClass
+class WellKnownResponseSnapshotFile {
+
+    private static final int MAGIC = 0x5447574B; // "TGWK"
+    private static final int VERSION = 2;
+
+    void write(Path path, Snapshot snapshot) throws IOException {
+        long nowNanos = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(snapshot.primaryKeysByRequestPath().size());
+        for (Map.Entry<String, String> requestPath : snapshot.primaryKeysByRequestPath().entrySet()) {
+            writeString(out, requestPath.getKey());
+            writeString(out, requestPath.getValue());
+        }
+        out.writeInt(snapshot.responses().size());
+        for (LastGoodResponse lastGood : snapshot.responses()) {
+            WellKnownCachedResponse cached = lastGood.response();
+            Representation response = cached.response();
+            writeString(out, lastGood.cacheKey());
+            writeString(out, lastGood.primaryKey());
+            out.writeLong(nowMillis - TimeUnit.NANOSECONDS.toMillis(cached.ageNanos(nowNanos)));
+            out.writeInt(response.statusCode().value());
+            writeString(out, cached.upstreamUri() == null ? null : cached.upstreamUri().toString());
+            writeHeaders(out, response.headers());
+            writeHeaders(out, cached.varyRequestHeaders());
+            ByteBuffer body = response.body().duplicate();
+            byte[] bodyBytes = new byte[body.remaining()];
+            body.get(bodyBytes);
+            writeBytes(out, bodyBytes);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        out.flush();
+        writeAtomically(path, bytes.toByteArray());
+    }
+
+    Snapshot read(Path path, Duration timeToLive, Duration keySetProbeInterval) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        try {
+            return read(buffer, timeToLive, keySetProbeInterval);
+        } catch (RuntimeException ex) {
+            throw new IOException("Invalid well-known response snapshot file '%s'".formatted(path), ex);
+        }
+    }
+
+    private Snapshot read(ByteBuffer buffer, Duration timeToLive, Duration keySetProbeInterval) throws IOException {
+        if (buffer.remaining() < 3 * Integer.BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a well-known response snapshot file");
+        }
+        if (buffer.getInt(Integer.BYTES) != VERSION) {
+            throw new IOException("Unsupported snapshot file version " + buffer.getInt(Integer.BYTES));
+        }
+        int crcOffset = buffer.limit() - Integer.BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().limit(crcOffset));
+        if ((int) crc.getValue() != buffer.getInt(crcOffset)) {
+            throw new IOException("Snapshot file checksum mismatch");
+        }
+        long nowNanos = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+        buffer.position(2 * Integer.BYTES);
+        int requestPathCount = buffer.getInt();
+        Map<String, String> primaryKeysByRequestPath = new HashMap<>(requestPathCount * 2);
+        for (int i = 0; i < requestPathCount; i++) {
+            primaryKeysByRequestPath.put(readString(buffer), readString(buffer));
+        }
+        int responseCount = buffer.getInt();
+        List<LastGoodResponse> responses = new ArrayList<>(responseCount);
+        for (int i = 0; i < responseCount; i++) {
+            String cacheKey = readString(buffer);
+            String primaryKey = readString(buffer);
+            long storedAt = buffer.getLong();
+            HttpStatusCode statusCode = HttpStatusCode.valueOf(buffer.getInt());
+            String upstreamUri = readString(buffer);
+            HttpHeaders headers = readHeaders(buffer);
+            HttpHeaders varyRequestHeaders = readHeaders(buffer);
+            byte[] body = readBytes(buffer);
+            long ageNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, nowMillis - storedAt));
+            responses.add(new LastGoodResponse(cacheKey, primaryKey, new WellKnownCachedResponse(
+                    statusCode,
+                    headers,
+                    body,
+                    upstreamUri == null ? null : URI.create(upstreamUri),
+                    varyRequestHeaders,
+                    nowNanos - ageNanos,
+                    timeToLive,
+                    keySetProbeInterval)));
+        }
+        if (buffer.position() != crcOffset) {
+            throw new IOException("Unexpected data at the end of snapshot file");
+        }
+        return new Snapshot(primaryKeysByRequestPath, responses);
+    }
+
+    private void writeAtomically(Path path, byte[] content) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path tempFile = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+        try {
+            Files.write(tempFile, content);
+            Files.move(tempFile, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private void writeHeaders(DataOutputStream out, HttpHeaders headers) throws IOException {
+        List<Map.Entry<String, String>> values = new ArrayList<>();
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            for (String value : header.getValue()) {
+                values.add(Map.entry(header.getKey(), value));
+            }
+        }
+        out.writeInt(values.size());
+        for (Map.Entry<String, String> value : values) {
+            writeString(out, value.getKey());
+            writeString(out, value.getValue());
+        }
+    }
+
+    private HttpHeaders readHeaders(ByteBuffer buffer) {
+        HttpHeaders headers = new HttpHeaders();
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            headers.add(readString(buffer), readString(buffer));
+        }
+        return headers;
+    }
+
+    private void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String readString(ByteBuffer buffer) {
+        byte[] bytes = readBytes(buffer);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    record Snapshot(Map<String, String> primaryKeysByRequestPath, Collection<LastGoodResponse> responses) {
+    }
+
+    // Primary key is needed for registering the variant again if the response varies by request headers
+    record LastGoodResponse(String cacheKey, String primaryKey, WellKnownCachedResponse response) {
+    }
+}
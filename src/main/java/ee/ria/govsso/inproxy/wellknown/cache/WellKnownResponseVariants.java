@@ -0,0 +1,67 @@
+package ee.ria.govsso.inproxy.wellknown.cache;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// Request headers that responses vary by, learned from the Vary header of responses, together with the cache keys of
+// the variants stored for them. The number of variants per primary key is bounded, so that a request header with many
+// different values can not fill the cache with variants of a single response.
+class WellKnownResponseVariants {
+
+    private final Map<String, Variants> variantsByPrimaryKey = new ConcurrentHashMap<>();
+    private final int maxVariants;
+
+    WellKnownResponseVariants(int maxVariants) {
+        this.maxVariants = maxVariants;
+    }
+
+    // Empty if responses have not varied by any request headers
+    List<String> varyHeaders(String primaryKey) {
+        Variants variants = variantsByPrimaryKey.get(primaryKey);
+        return variants != null ? variants.varyHeaders() : List.of();
+    }
+
+    // Returns false if there is no room for another variant. Variants that are no longer cached do not count towards
+    // the limit. If the request headers that responses vary by have changed, the variants of the previous request
+    // headers are passed to invalidate, because they can not be looked up anymore.
+    synchronized boolean add(String primaryKey,
+                             List<String> varyHeaders,
+                             String cacheKey,
+                             Predicate<String> isCached,
+                             Consumer<String> invalidate) {
+        Variants variants = variantsByPrimaryKey.get(primaryKey);
+        if (variants != null && !variants.varyHeaders().equals(varyHeaders)) {
+            variants.cacheKeys().forEach(invalidate);
+            variantsByPrimaryKey.remove(primaryKey);
+            variants = null;
+        }
+        if (varyHeaders.isEmpty()) {
+            return true;
+        }
+        if (variants == null) {
+            variants = new Variants(varyHeaders, new HashSet<>());
+            variantsByPrimaryKey.put(primaryKey, variants);
+        }
+        Set<String> cacheKeys = variants.cacheKeys();
+        if (cacheKeys.contains(cacheKey)) {
+            return true;
+        }
+        if (cacheKeys.size() >= maxVariants) {
+            cacheKeys.removeIf(isCached.negate());
+            if (cacheKeys.size() >= maxVariants) {
+                return false;
+            }
+        }
+        cacheKeys.add(cacheKey);
+        return true;
+    }
+
+    // Cache keys are only accessed while holding the lock
+    private record Variants(List<String> varyHeaders, Set<String> cacheKeys) {
+    }
+}
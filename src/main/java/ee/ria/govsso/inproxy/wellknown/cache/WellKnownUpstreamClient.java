@@ -0,0 +1,66 @@
+package ee.ria.govsso.inproxy.wellknown.cache;
+
+import org.springframework.cloud.client.loadbalancer.reactive.LoadBalancedExchangeFilterFunction;
+import org.springframework.cloud.gateway.filter.headers.RemoveHopByHopHeadersFilter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+
+import java.net.URI;
+
+// Fetches well-known documents from upstream outside of client requests, for example to refresh cached responses.
+// Uses the HttpClient of Spring Cloud Gateway, so that the same TLS configuration applies as for routed requests, and
+// load balances "lb://" URIs the same way as routes do.
+@Component
+public class WellKnownUpstreamClient {
+
+    private static final String LOAD_BALANCED_SCHEME = "lb";
+
+    private final WebClient webClient;
+    private final RemoveHopByHopHeadersFilter hopByHopHeadersFilter = new RemoveHopByHopHeadersFilter();
+
+    public WellKnownUpstreamClient(WebClient.Builder webClientBuilder,
+                                   HttpClient gatewayHttpClient,
+                                   LoadBalancedExchangeFilterFunction loadBalancerFilter) {
+        webClient = webClientBuilder
+                .clientConnector(new ReactorClientHttpConnector(gatewayHttpClient))
+                .filter(loadBalanceIfNeeded(loadBalancerFilter))
+                .build();
+    }
+
+    public Mono<ResponseEntity<byte[]>> get(URI uri, HttpHeaders headers) {
+        return webClient.get()
+                .uri(uri)
+                .headers(requestHeaders -> requestHeaders.addAll(headers))
+                .accept(MediaType.ALL)
+                .exchangeToMono(response -> response.toEntity(byte[].class))
+                .map(response -> new ResponseEntity<>(
+                        response.getBody() != null ? response.getBody() : new byte[0],
+                        withoutHopByHopHeaders(response.getHeaders()),
+                        response.getStatusCode()));
+    }
+
+    private HttpHeaders withoutHopByHopHeaders(HttpHeaders headers) {
+        // Same as done by NettyRoutingFilter for routed responses, exchange is not used for filtering.
+        return hopByHopHeadersFilter.filter(headers, null);
+    }
+
+    private static ExchangeFilterFunction loadBalanceIfNeeded(ExchangeFilterFunction loadBalancerFilter) {
+        return (request, next) -> {
+            if (!LOAD_BALANCED_SCHEME.equals(request.url().getScheme())) {
+                return next.exchange(request);
+            }
+            // The load balancer keeps the scheme of the request, but upgrades "http" to "https" for secure instances.
+            URI url = UriComponentsBuilder.fromUri(request.url()).scheme("http").build(true).toUri();
+            return loadBalancerFilter.filter(ClientRequest.from(request).url(url).build(), next);
+        };
+    }
+}
@@ -11,6 +11,8 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -37,6 +39,7 @@ public class BaseTestLoggingAssertion {
     private static ListAppender<ILoggingEvent> mockLogAppender;
     private ListAppender<ILoggingEvent> accessLogAppender;
     private static final String ACCESS_LOGGER_NAME = "ee.ria.govsso.inproxy.filter.CustomAccessLogFilter";
+    private static final long AWAIT_LOG_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
 
 
     @BeforeEach
@@ -88,6 +91,12 @@ public class BaseTestLoggingAssertion {
         return assertMessageIsLogged(loggerClass, ERROR, messagesInRelativeOrder);
     }
 
+    // For messages that are logged asynchronously, for example by background tasks.
+    protected List<ILoggingEvent> awaitWarningIsLogged(Class<?> loggerClass, String... messagesInRelativeOrder) {
+        awaitMessages(mockLogAppender, of(messagesInRelativeOrder), String::startsWith);
+        return assertMessageIsLogged(loggerClass, WARN, messagesInRelativeOrder);
+    }
+
     protected List<ILoggingEvent> assertMessageIsLogged(Predicate<ILoggingEvent> additionalFilter, String... messagesInRelativeOrder) {
         return assertMessageIsLogged(null, null, additionalFilter, messagesInRelativeOrder);
     }
@@ -102,6 +111,7 @@ public class BaseTestLoggingAssertion {
 
     private List<ILoggingEvent> assertAccessLogMessageIsLogged(String... messagesInRelativeOrder) {
         List<String> expectedMessages = of(messagesInRelativeOrder);
+        awaitMessages(accessLogAppender, expectedMessages, String::contains);
         Stream<ILoggingEvent> eventStream = accessLogAppender.list.stream()
             .filter(e -> expectedMessages.stream().anyMatch(expected -> e.getFormattedMessage().contains(expected)));
         List<ILoggingEvent> events = eventStream.collect(toList());
@@ -112,6 +122,29 @@ public class BaseTestLoggingAssertion {
         return events;
     }
 
+    // Waits until the messages are logged or the timeout passes. For example, the access log is written when the exchange
+    // completes, which can happen after the client has already received a response with a known content length.
+    private static void awaitMessages(ListAppender<ILoggingEvent> appender,
+                                      List<String> expectedMessages,
+                                      BiPredicate<String, String> matcher) {
+        long deadline = System.nanoTime() + AWAIT_LOG_TIMEOUT_NANOS;
+        while (System.nanoTime() < deadline) {
+            List<String> messages;
+            synchronized (appender) {
+                messages = appender.list.stream().map(ILoggingEvent::getFormattedMessage).toList();
+            }
+            if (expectedMessages.stream().allMatch(expected -> messages.stream().anyMatch(m -> matcher.test(m, expected)))) {
+                return;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private List<ILoggingEvent> assertMessageIsLogged(Class<?> loggerClass, Level loggingLevel, Predicate<ILoggingEvent> additionalFilter, String... messagesInRelativeOrder) {
         List<String> expectedMessages = of(messagesInRelativeOrder);
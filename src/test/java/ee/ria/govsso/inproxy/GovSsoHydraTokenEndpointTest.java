@@ -1,6 +1,7 @@
 package ee.ria.govsso.inproxy;
 
 import ee.ria.govsso.inproxy.filter.IpAddressGatewayFilterFactory;
+import ee.ria.govsso.inproxy.logging.TokenRequestIpAddressViolationLogger;
 import ee.ria.govsso.inproxy.service.TokenRequestAllowedIpAddressesService;
 import ee.ria.govsso.inproxy.util.TestUtils;
 import org.hamcrest.Matchers;
@@ -51,7 +52,7 @@ public class GovSsoHydraTokenEndpointTest extends BaseTest {
                         .withHeader("Content-Type", "application/json; charset=UTF-8")
                         .withBody(responseBody)));
 
-        tokenRequestAllowedIpAddressesService.updateAllowedIpsTask();
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
 
         String expectedResponse = TestUtils.getResourceAsString("__files/mock_responses/hydra_token.json");
         given()
@@ -78,7 +79,7 @@ public class GovSsoHydraTokenEndpointTest extends BaseTest {
                         .withHeader("Content-Type", "application/json; charset=UTF-8")
                         .withBody(responseBody)));
 
-        tokenRequestAllowedIpAddressesService.updateAllowedIpsTask();
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
 
         given()
                 .when()
@@ -106,6 +107,8 @@ public class GovSsoHydraTokenEndpointTest extends BaseTest {
         // `GovSsoHydraTokenEndpointTest.tokenRequestAllowedIpAddressesService`.
         @Autowired
         private TokenRequestAllowedIpAddressesService tokenRequestAllowedIpAddressesService;
+        @Autowired
+        private TokenRequestIpAddressViolationLogger ipAddressViolationLogger;
 
         @BeforeEach
         void setupServerMocks() {
@@ -124,7 +127,7 @@ public class GovSsoHydraTokenEndpointTest extends BaseTest {
                             .withHeader("Content-Type", "application/json; charset=UTF-8")
                             .withBody(responseBody)));
 
-            tokenRequestAllowedIpAddressesService.updateAllowedIpsTask();
+            tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
 
             given()
                     .when()
@@ -136,7 +139,10 @@ public class GovSsoHydraTokenEndpointTest extends BaseTest {
                     .assertThat()
                     .statusCode(200);
 
-            assertWarningIsLogged(IpAddressGatewayFilterFactory.class, "unauthorized_client - IP address 1.2.3.4 is not whitelisted for client_id \"client-a\", allowing request");
+            // Violations are logged once per interval
+            assertMessageIsNotLogged(IpAddressGatewayFilterFactory.class, "unauthorized_client");
+            ipAddressViolationLogger.flush();
+            assertWarningIsLogged(TokenRequestIpAddressViolationLogger.class, "unauthorized_client - IP address 1.2.3.4 is not whitelisted for client_id \"client-a\", allowed 1 request(s)");
             HYDRA_MOCK_SERVER.verify(exactly(1), postRequestedFor(urlEqualTo("/oauth2/token")));
         }
 
@@ -172,7 +178,7 @@ public class GovSsoHydraTokenEndpointTest extends BaseTest {
                         .withHeader("Content-Type", "application/json; charset=UTF-8")
                         .withBody("{\"client-a\":[\"127.0.0.1\"]}")));
 
-        tokenRequestAllowedIpAddressesService.updateAllowedIpsTask();
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
 
         given()
                 .when()
@@ -203,7 +209,7 @@ public class GovSsoHydraTokenEndpointTest extends BaseTest {
                         .withHeader("Content-Type", "application/json; charset=UTF-8")
                         .withBody(responseBody)));
 
-        tokenRequestAllowedIpAddressesService.updateAllowedIpsTask();
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
 
         String expectedResponse = TestUtils.getResourceAsString("__files/mock_responses/hydra_token.json");
         given()
@@ -252,7 +258,7 @@ public class GovSsoHydraTokenEndpointTest extends BaseTest {
                         .withHeader("Content-Type", "application/json; charset=UTF-8")
                         .withBody(responseBody)));
 
-        tokenRequestAllowedIpAddressesService.updateAllowedIpsTask();
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
 
         String expectedResponse = TestUtils.getResourceAsString("__files/mock_responses/hydra_token.json");
         given()
@@ -1,19 +1,72 @@
 package ee.ria.govsso.inproxy;
 
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import com.github.tomakehurst.wiremock.http.Fault;
 import ee.ria.govsso.inproxy.util.TestUtils;
+import ee.ria.govsso.inproxy.wellknown.cache.WellKnownCacheEntry;
+import ee.ria.govsso.inproxy.wellknown.cache.WellKnownResponseCacheManager;
+import ee.ria.govsso.inproxy.wellknown.cache.WellKnownResponseCacheRegistry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.restassured.RestAssured;
+import io.restassured.config.DecoderConfig;
+import io.restassured.config.RestAssuredConfig;
+import io.restassured.response.ValidatableResponse;
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.exactly;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static io.restassured.RestAssured.given;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.equalToCompressingWhiteSpace;
+import static org.hamcrest.Matchers.emptyString;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.matchesPattern;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
 @ActiveProfiles({"tara"})
 public class TaraHydraWellKnownEndpointTest extends BaseTest {
 
+    private static final int CONCURRENT_REQUESTS = 4;
+    // Shared by nested test classes, so that they share the application context
+    private static final String PROBING_CACHE = "30m,10MB,1m,10m,1s,10,1d,1s";
+
+    @Autowired
+    private WellKnownResponseCacheRegistry wellKnownResponseCacheRegistry;
+
+    // Responses cached by an earlier test would otherwise be served instead of the ones stubbed by the test
+    @BeforeEach
+    void purgeRouteCache() {
+        wellKnownResponseCacheRegistry.getCacheManager("hydra-well-known").orElseThrow().purge(null);
+    }
+
     @ParameterizedTest
     @ValueSource(strings = {"/.well-known/openid-configuration", "/oidc/.well-known/openid-configuration"})
     void hydra_openIdConfiguration_ReturnsConfiguration(String wellKnownPath) {
@@ -49,6 +102,126 @@ public class TaraHydraWellKnownEndpointTest extends BaseTest {
                 .body(equalToCompressingWhiteSpace(expectedResponse));
     }
 
+    @Test
+    void hydra_jwksCached_CompressedResponseReturnedIfAccepted() throws IOException {
+        HYDRA_MOCK_SERVER.stubFor(get(urlEqualTo("/.well-known/jwks.json"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json; charset=UTF-8")
+                        .withBodyFile("mock_responses/hydra_jwks.json")));
+        String expectedResponse = TestUtils.getResourceAsString("__files/mock_responses/hydra_jwks.json");
+        given().when().get("/oidc/jwks").then().statusCode(200);
+
+        given()
+                .when()
+                .header("Accept-Encoding", "gzip")
+                .get("/oidc/jwks")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .header("Content-Encoding", "gzip")
+                .header("Vary", "Accept-Encoding")
+                .body(equalToCompressingWhiteSpace(expectedResponse));
+        given()
+                .config(withoutContentDecoders())
+                .when()
+                .header("Accept-Encoding", "gzip;q=0, identity")
+                .get("/oidc/jwks")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .header("Content-Encoding", nullValue())
+                .header("Vary", "Accept-Encoding")
+                .header("Content-Length", String.valueOf(Files.size(Path.of("src/test/resources/__files/mock_responses/hydra_jwks.json"))))
+                .body(equalToCompressingWhiteSpace(expectedResponse));
+    }
+
+    @Test
+    void hydra_openIdConfigurationCachedWithMatchingETag_Returns304() {
+        HYDRA_MOCK_SERVER.stubFor(get(urlEqualTo("/.well-known/openid-configuration"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json; charset=UTF-8")
+                        .withHeader("ETag", "\"upstream\"")
+                        .withBodyFile("mock_responses/hydra_openid-configuration.json")));
+        given().when().get("/.well-known/openid-configuration").then().statusCode(200);
+        String etag = given()
+                .config(withoutContentDecoders())
+                .when()
+                .header("Accept-Encoding", "identity")
+                .get("/.well-known/openid-configuration")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .header("ETag", matchesPattern("\"[A-Za-z0-9_-]{22}\""))
+                .extract()
+                .header("ETag");
+
+        given()
+                .config(withoutContentDecoders())
+                .when()
+                .header("Accept-Encoding", "identity")
+                .header("If-None-Match", "\"other\", " + etag)
+                .get("/.well-known/openid-configuration")
+                .then()
+                .assertThat()
+                .statusCode(304)
+                .header("ETag", etag)
+                .header("Content-Type", nullValue())
+                .body(emptyString());
+        given()
+                .when()
+                .header("Accept-Encoding", "gzip")
+                .header("If-None-Match", etag)
+                .get("/.well-known/openid-configuration")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .header("ETag", not(etag));
+    }
+
+    private static List<String> getConcurrently(String url) {
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENT_REQUESTS);
+        try {
+            List<CompletableFuture<String>> responses = IntStream.range(0, CONCURRENT_REQUESTS)
+                    .mapToObj(i -> CompletableFuture.supplyAsync(
+                            () -> given().when().get(url).then().statusCode(200).extract().asString(),
+                            executor))
+                    .toList();
+            return responses.stream().map(CompletableFuture::join).toList();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /* Otherwise the HTTP client adds its own Accept-Encoding header */
+    private static RestAssuredConfig withoutContentDecoders() {
+        return RestAssured.config().decoderConfig(DecoderConfig.decoderConfig().noContentDecoders());
+    }
+
+    @Test
+    void hydra_jwksCached_MaxAgeOfCacheAndAgeReturned() {
+        HYDRA_MOCK_SERVER.stubFor(get(urlEqualTo("/.well-known/jwks.json"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json; charset=UTF-8")
+                        .withHeader("Cache-Control", "public, max-age=60")
+                        .withHeader("Expires", "Thu, 01 Jan 2099 00:00:00 GMT")
+                        .withBodyFile("mock_responses/hydra_jwks.json")));
+        given().when().get("/oidc/jwks").then().statusCode(200);
+
+        given()
+                .when()
+                .get("/oidc/jwks")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .header("Cache-Control", endsWith("max-age=1800"))
+                .header("Cache-Control", not(containsString("max-age=60")))
+                .header("Expires", nullValue())
+                .header("Age", matchesPattern("\\d+"));
+    }
+
     @Test
     void hydra_NotConfiguredEndpoint_Returns404() {
         HYDRA_MOCK_SERVER.stubFor(get(urlEqualTo("/.well-known/restricted-endpoint"))
@@ -63,4 +236,466 @@ public class TaraHydraWellKnownEndpointTest extends BaseTest {
                 .assertThat()
                 .statusCode(404);
     }
+
+    // Shared by the nested test classes, which have their own cache configuration and therefore application context.
+    // Cached responses are purged before each test, last good responses are kept.
+    abstract static class BaseCacheTest extends BaseTest {
+
+        private static final String ROUTE_ID = "hydra-well-known";
+        private static final Duration AWAIT_TIMEOUT = Duration.ofSeconds(5);
+        private static final Duration AWAIT_POLL_INTERVAL = Duration.ofMillis(50);
+
+        @Autowired
+        private MeterRegistry meterRegistry;
+
+        @Autowired
+        private WellKnownResponseCacheRegistry wellKnownResponseCacheRegistry;
+
+        @BeforeEach
+        void purgeCache() {
+            getCacheManager().purge(null);
+        }
+
+        static void stubJwks(String body) {
+            stubJwks(aResponse()
+                    .withStatus(200)
+                    .withHeader("Content-Type", "application/json; charset=UTF-8")
+                    .withBody(body));
+        }
+
+        static void stubJwks(ResponseDefinitionBuilder response) {
+            HYDRA_MOCK_SERVER.stubFor(get(urlEqualTo("/.well-known/jwks.json")).willReturn(response));
+        }
+
+        static io.restassured.response.Response getJwks() {
+            return given().when().get("/oidc/jwks");
+        }
+
+        static void awaitJwks(String expectedBody) {
+            await(() -> expectedBody.equals(getJwks().asString()));
+            getJwks().then().statusCode(200).body(equalTo(expectedBody));
+        }
+
+        static void await(BooleanSupplier condition) {
+            Awaitility.await()
+                    .atMost(AWAIT_TIMEOUT)
+                    .pollInterval(AWAIT_POLL_INTERVAL)
+                    .until(condition::getAsBoolean);
+        }
+
+        // Waits without making requests, which would refresh the cached response
+        void awaitCacheEntry(String key, Predicate<WellKnownCacheEntry> condition) {
+            await(() -> getCacheManager().getEntries().stream()
+                    .anyMatch(entry -> entry.key().equals(key) && condition.test(entry)));
+        }
+
+        void awaitCacheEntryExpired(String key) {
+            await(() -> getCacheManager().getEntries().stream().noneMatch(entry -> entry.key().equals(key)));
+        }
+
+        double getCounterCount(String name, String... tags) {
+            return meterRegistry.get(name).tag("route", ROUTE_ID).tags(tags).counter().count();
+        }
+
+        long getTimerCount(String name, String... tags) {
+            return meterRegistry.get(name).tag("route", ROUTE_ID).tags(tags).timer().count();
+        }
+
+        private WellKnownResponseCacheManager getCacheManager() {
+            return wellKnownResponseCacheRegistry.getCacheManager(ROUTE_ID).orElseThrow();
+        }
+    }
+
+    @Nested
+    @TestPropertySource(properties = "test.hydra-well-known-cache=2s,10MB,1s,1h")
+    class CacheRefreshTests extends BaseCacheTest {
+
+        private static final String JWKS_V1 = "{\"keys\":[{\"kid\":\"key-1\"}]}";
+        private static final String JWKS_V2 = "{\"keys\":[{\"kid\":\"key-2\"}]}";
+
+        @Test
+        void hydra_jwksAboutToExpire_CachedResponseReturnedAndRefreshedInBackground() {
+            stubJwks(JWKS_V1);
+            getJwks().then().statusCode(200).body(equalTo(JWKS_V1));
+            stubJwks(JWKS_V2);
+            awaitCacheEntry("/.well-known/jwks.json", entry -> entry.ageInSeconds() >= 1);
+
+            getJwks().then().statusCode(200).body(equalTo(JWKS_V1));
+
+            awaitJwks(JWKS_V2);
+            HYDRA_MOCK_SERVER.verify(exactly(2), getRequestedFor(urlEqualTo("/.well-known/jwks.json")));
+        }
+
+        @Test
+        void hydra_refreshFailsAfterExpiry_StaleResponseReturned() {
+            String url = "/.well-known/openid-configuration";
+            HYDRA_MOCK_SERVER.stubFor(get(urlEqualTo(url))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withHeader("Content-Type", "application/json; charset=UTF-8")
+                            .withBodyFile("mock_responses/hydra_openid-configuration.json")));
+            String expectedResponse = TestUtils.getResourceAsString("__files/mock_responses/hydra_openid-configuration.json");
+            given().when().get(url).then().statusCode(200);
+            HYDRA_MOCK_SERVER.stubFor(get(urlEqualTo(url)).willReturn(aResponse().withStatus(500)));
+            awaitCacheEntry(url, entry -> entry.ageInSeconds() >= 2);
+
+            given()
+                    .when()
+                    .get(url)
+                    .then()
+                    .assertThat()
+                    .statusCode(200)
+                    .body(equalToCompressingWhiteSpace(expectedResponse));
+
+            awaitWarningIsLogged(WellKnownResponseCacheManager.class,
+                    "Failed to refresh cached response from lb://hydra/.well-known/openid-configuration, serving cached response until it expires: status code 500");
+            given()
+                    .when()
+                    .get(url)
+                    .then()
+                    .assertThat()
+                    .statusCode(200)
+                    .body(equalToCompressingWhiteSpace(expectedResponse));
+            HYDRA_MOCK_SERVER.verify(exactly(2), getRequestedFor(urlEqualTo(url)));
+        }
+    }
+
+    @Nested
+    @TestPropertySource(properties = "test.hydra-well-known-cache=" + PROBING_CACHE)
+    class KeySetProbeTests extends BaseCacheTest {
+
+        private static final String JWKS_V1 = "{\"keys\":[{\"kid\":\"key-1\"}]}";
+        private static final String JWKS_V1_REORDERED = "{ \"keys\": [ { \"kid\": \"key-1\" } ] }";
+        private static final String JWKS_V2 = "{\"keys\":[{\"kid\":\"key-1\"},{\"kid\":\"key-2\"}]}";
+
+        @Test
+        void hydra_jwksKeysRotated_CachedResponseReplacedBeforeExpiry() {
+            stubJwks(JWKS_V1);
+            getJwks().then().statusCode(200).body(equalTo(JWKS_V1));
+            double rotationCount = getCounterCount("well.known.response.cache.key.set.rotations");
+            long probeCount = getTimerCount("well.known.response.cache.key.set.probes", "result", "rotated");
+            stubJwks(JWKS_V2);
+
+            getJwks().then().statusCode(200).body(equalTo(JWKS_V1));
+
+            // Probed by the first request after the probe interval
+            awaitJwks(JWKS_V2);
+            assertThat(getCounterCount("well.known.response.cache.key.set.rotations"), equalTo(rotationCount + 1));
+            assertThat(getTimerCount("well.known.response.cache.key.set.probes", "result", "rotated"),
+                    equalTo(probeCount + 1));
+        }
+
+        @Test
+        void hydra_jwksKeysNotChanged_CachedResponseKept() {
+            stubJwks(JWKS_V1);
+            getJwks().then().statusCode(200).body(equalTo(JWKS_V1));
+            double rotationCount = getCounterCount("well.known.response.cache.key.set.rotations");
+            long probeCount = getTimerCount("well.known.response.cache.key.set.probes", "result", "unchanged");
+            stubJwks(JWKS_V1_REORDERED);
+
+            await(() -> {
+                getJwks().then().statusCode(200).body(equalTo(JWKS_V1));
+                return getTimerCount("well.known.response.cache.key.set.probes", "result", "unchanged") > probeCount;
+            });
+
+            getJwks().then().statusCode(200).body(equalTo(JWKS_V1));
+            assertThat(getTimerCount("well.known.response.cache.key.set.probes", "result", "unchanged"),
+                    equalTo(probeCount + 1));
+            assertThat(getCounterCount("well.known.response.cache.key.set.rotations"), equalTo(rotationCount));
+        }
+
+        @Test
+        void hydra_jwksCached_MaxAgeOfProbeIntervalReturned() {
+            stubJwks(JWKS_V1);
+            getJwks().then().statusCode(200);
+
+            getJwks().then()
+                    .statusCode(200)
+                    .header("Cache-Control", endsWith("max-age=1"))
+                    .header("Age", matchesPattern("\\d+"));
+        }
+
+        @Test
+        void hydra_openIdConfiguration_NotProbed() {
+            String url = "/.well-known/openid-configuration";
+            HYDRA_MOCK_SERVER.stubFor(get(urlEqualTo(url))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withHeader("Content-Type", "application/json; charset=UTF-8")
+                            .withBodyFile("mock_responses/hydra_openid-configuration.json")));
+            given().when().get(url).then().statusCode(200);
+            stubJwks(JWKS_V1);
+            getJwks().then().statusCode(200);
+            awaitCacheEntry("/.well-known/jwks.json", entry -> entry.ageInSeconds() >= 1);
+            long probeCount = getTimerCount("well.known.response.cache.key.set.probes", "result", "unchanged");
+
+            // Not a key set, so max-age is not capped at the probe interval either
+            given().when().get(url).then().statusCode(200).header("Cache-Control", endsWith("max-age=1800"));
+            getJwks().then().statusCode(200);
+
+            // The key set probe started by the request after it has finished, so a probe of the configuration would
+            // have been made by now
+            await(() -> getTimerCount("well.known.response.cache.key.set.probes", "result", "unchanged") > probeCount);
+            HYDRA_MOCK_SERVER.verify(exactly(1), getRequestedFor(urlEqualTo(url)));
+        }
+    }
+
+    @Nested
+    @TestPropertySource(properties = "test.hydra-well-known-cache=" + PROBING_CACHE)
+    class CoalescingTests extends BaseCacheTest {
+
+        @Test
+        void hydra_concurrentRequestsNotCached_SingleUpstreamRequest() {
+            HYDRA_MOCK_SERVER.stubFor(get(urlEqualTo("/.well-known/jwks.json"))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withHeader("Content-Type", "application/json; charset=UTF-8")
+                            .withBodyFile("mock_responses/hydra_jwks.json")
+                            .withFixedDelay(500)));
+            String expectedResponse = TestUtils.getResourceAsString("__files/mock_responses/hydra_jwks.json");
+            double coalescedCount = getCoalescedRequestCount("cached");
+
+            List<String> responses = getConcurrently("/oidc/jwks");
+
+            assertThat(responses, everyItem(equalToCompressingWhiteSpace(expectedResponse)));
+            HYDRA_MOCK_SERVER.verify(exactly(1), getRequestedFor(urlEqualTo("/.well-known/jwks.json")));
+            assertThat(getCoalescedRequestCount("cached"), equalTo(coalescedCount + CONCURRENT_REQUESTS - 1));
+        }
+
+        @Test
+        void hydra_concurrentRequestsNotCachedInTime_FallbackToOwnUpstreamRequests() {
+            HYDRA_MOCK_SERVER.stubFor(get(urlEqualTo("/.well-known/openid-configuration"))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withHeader("Content-Type", "application/json; charset=UTF-8")
+                            .withBodyFile("mock_responses/hydra_openid-configuration.json")
+                            .withFixedDelay(2000)));
+            String expectedResponse = TestUtils.getResourceAsString("__files/mock_responses/hydra_openid-configuration.json");
+            double fallbackCount = getCoalescedRequestCount("fallback");
+
+            List<String> responses = getConcurrently("/.well-known/openid-configuration");
+
+            assertThat(responses, everyItem(equalToCompressingWhiteSpace(expectedResponse)));
+            HYDRA_MOCK_SERVER.verify(exactly(CONCURRENT_REQUESTS),
+                    getRequestedFor(urlEqualTo("/.well-known/openid-configuration")));
+            assertThat(getCoalescedRequestCount("fallback"), equalTo(fallbackCount + CONCURRENT_REQUESTS - 1));
+        }
+
+        private double getCoalescedRequestCount(String result) {
+            return getCounterCount("well.known.response.cache.coalesced.requests", "result", result);
+        }
+    }
+
+    @Nested
+    @TestPropertySource(properties = "test.hydra-well-known-cache=30m,10MB,1m,10m,5s,2")
+    class VaryTests extends BaseCacheTest {
+
+        @Test
+        void hydra_responseVariesByRequestHeader_CachedPerHeaderValue() {
+            stubVaryingResponse("/.well-known/jwks.json", "et", "en");
+
+            for (int i = 0; i < 2; i++) {
+                getWithLanguage("/oidc/jwks", "et").body(equalTo("{\"language\":\"et\"}"));
+                getWithLanguage("/oidc/jwks", "en").body(equalTo("{\"language\":\"en\"}"));
+            }
+
+            for (String language : List.of("et", "en")) {
+                HYDRA_MOCK_SERVER.verify(exactly(1), getRequestedFor(urlEqualTo("/.well-known/jwks.json"))
+                        .withHeader("Accept-Language", WireMock.equalTo(language)));
+            }
+        }
+
+        @Test
+        void hydra_maximumNumberOfVariantsReached_ResponseNotCached() {
+            stubVaryingResponse("/.well-known/openid-configuration", "et", "en", "ru");
+            double rejectedCount = getCounterCount("well.known.response.cache.rejected.variants");
+
+            for (String language : List.of("et", "en", "ru", "ru")) {
+                getWithLanguage("/.well-known/openid-configuration", language)
+                        .body(equalTo("{\"language\":\"" + language + "\"}"));
+            }
+
+            HYDRA_MOCK_SERVER.verify(exactly(2), getRequestedFor(urlEqualTo("/.well-known/openid-configuration"))
+                    .withHeader("Accept-Language", WireMock.equalTo("ru")));
+            assertThat(getCounterCount("well.known.response.cache.rejected.variants"), equalTo(rejectedCount + 2));
+        }
+
+        private void stubVaryingResponse(String url, String... languages) {
+            for (String language : languages) {
+                HYDRA_MOCK_SERVER.stubFor(get(urlEqualTo(url))
+                        .withHeader("Accept-Language", WireMock.equalTo(language))
+                        .willReturn(aResponse()
+                                .withStatus(200)
+                                .withHeader("Content-Type", "application/json; charset=UTF-8")
+                                .withHeader("Vary", "Accept-Language")
+                                .withBody("{\"language\":\"" + language + "\"}")));
+            }
+        }
+
+        private ValidatableResponse getWithLanguage(String url, String language) {
+            return given()
+                    .when()
+                    .header("Accept-Language", language)
+                    .get(url)
+                    .then()
+                    .assertThat()
+                    .statusCode(200)
+                    .header("Vary", "Accept-Language");
+        }
+    }
+
+    @Nested
+    @TestPropertySource(properties = {
+            "test.hydra-well-known-cache=1s,10MB,1s,0s,5s,10,1h",
+            "tara-govsso-inproxy.well-known-cache.storage-path=target/well-known-cache"})
+    class StaleIfErrorTests extends BaseCacheTest {
+
+        private static final String JWKS = "{\"keys\":[{\"kid\":\"stale\"}]}";
+
+        @Test
+        void hydra_upstreamReturnsServerErrorAfterExpiry_LastGoodResponseReturned() {
+            stubJwks(JWKS);
+            getJwks().then().statusCode(200).body(equalTo(JWKS));
+            awaitCacheEntryExpired("/.well-known/jwks.json");
+            stubJwks(aResponse().withStatus(503));
+            double staleCount = getStaleResponseCount();
+
+            getJwks()
+                    .then()
+                    .assertThat()
+                    .statusCode(200)
+                    .header("Age", not("0"))
+                    .body(equalTo(JWKS));
+
+            HYDRA_MOCK_SERVER.verify(exactly(2), getRequestedFor(urlEqualTo("/.well-known/jwks.json")));
+            assertThat(getStaleResponseCount(), equalTo(staleCount + 1));
+            assertWarningIsLogged(WellKnownResponseCacheManager.class,
+                    "Upstream request to lb://hydra/.well-known/jwks.json failed, serving last good response: status code 503");
+        }
+
+        @Test
+        void hydra_upstreamFailsAfterExpiry_LastGoodResponseKeptInCache() {
+            stubJwks(JWKS);
+            getJwks().then().statusCode(200).body(equalTo(JWKS));
+            awaitCacheEntryExpired("/.well-known/jwks.json");
+            stubJwks(aResponse().withStatus(503));
+            double staleCount = getStaleResponseCount();
+
+            for (int i = 0; i < 3; i++) {
+                getJwks().then().statusCode(200).body(equalTo(JWKS));
+            }
+
+            HYDRA_MOCK_SERVER.verify(exactly(2), getRequestedFor(urlEqualTo("/.well-known/jwks.json")));
+            assertThat(getStaleResponseCount(), equalTo(staleCount + 1));
+            assertWarningIsLogged(WellKnownResponseCacheManager.class,
+                    "Upstream request to lb://hydra/.well-known/jwks.json failed, serving last good response: status code 503");
+        }
+
+        @Test
+        void hydra_concurrentRequestsWhileUpstreamFails_LastGoodResponseReturnedWithSingleUpstreamRequest()
+                {
+            stubJwks(JWKS);
+            getJwks().then().statusCode(200).body(equalTo(JWKS));
+            awaitCacheEntryExpired("/.well-known/jwks.json");
+            stubJwks(aResponse().withStatus(503).withFixedDelay(500));
+
+            List<String> responses = getConcurrently("/oidc/jwks");
+
+            assertThat(responses, everyItem(equalTo(JWKS)));
+            HYDRA_MOCK_SERVER.verify(exactly(2), getRequestedFor(urlEqualTo("/.well-known/jwks.json")));
+            assertWarningIsLogged(WellKnownResponseCacheManager.class,
+                    "Upstream request to lb://hydra/.well-known/jwks.json failed, serving last good response: status code 503");
+        }
+
+        @Test
+        void hydra_upstreamConnectionFailsAfterExpiry_LastGoodResponseReturned() {
+            stubJwks(JWKS);
+            getJwks().then().statusCode(200).body(equalTo(JWKS));
+            awaitCacheEntryExpired("/.well-known/jwks.json");
+            stubJwks(aResponse().withFault(Fault.CONNECTION_RESET_BY_PEER));
+
+            getJwks().then().statusCode(200).body(equalTo(JWKS));
+
+            assertMessageIsLogged(e -> e.getLoggerName().equals("reactor.netty.http.client.HttpClientConnect"), "[");
+            assertWarningIsLogged(WellKnownResponseCacheManager.class,
+                    "Upstream request to lb://hydra/.well-known/jwks.json failed, serving last good response: ");
+        }
+
+        @Test
+        void hydra_responseCached_LastGoodResponseStoredInFile() {
+            stubJwks(JWKS);
+            Path snapshotPath = Path.of("target/well-known-cache/hydra-well-known.bin");
+
+            getJwks().then().statusCode(200).body(equalTo(JWKS));
+
+            await(() -> containsJwks(snapshotPath));
+        }
+
+        private boolean containsJwks(Path snapshotPath) {
+            try {
+                return Files.exists(snapshotPath)
+                        && new String(Files.readAllBytes(snapshotPath), StandardCharsets.UTF_8).contains(JWKS);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private double getStaleResponseCount() {
+            return getCounterCount("well.known.response.cache.stale.responses");
+        }
+    }
+
+    @Nested
+    @TestPropertySource(properties = "test.hydra-well-known-cache=30m,10MB,1m,10m,5s,10,2d")
+    class CacheKeyTests extends BaseTest {
+
+        @Test
+        void hydra_pathsRewrittenToSameUpstreamPath_ShareCachedResponse() {
+            String url = "/.well-known/openid-configuration";
+            stubOpenIdConfiguration("{\"issuer\":\"v1\"}");
+            getOpenIdConfiguration(url).body(equalTo("{\"issuer\":\"v1\"}"));
+            stubOpenIdConfiguration("{\"issuer\":\"v2\"}");
+
+            getOpenIdConfiguration("/oidc" + url).body(equalTo("{\"issuer\":\"v2\"}"));
+
+            getOpenIdConfiguration(url).body(equalTo("{\"issuer\":\"v2\"}"));
+            getOpenIdConfiguration("/oidc" + url).body(equalTo("{\"issuer\":\"v2\"}"));
+            HYDRA_MOCK_SERVER.verify(exactly(2), getRequestedFor(urlEqualTo(url)));
+        }
+
+        @Test
+        void hydra_requestsWithDifferentQueryAndCredentials_ShareCachedResponse() {
+            HYDRA_MOCK_SERVER.stubFor(get(urlEqualTo("/.well-known/jwks.json"))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withHeader("Content-Type", "application/json; charset=UTF-8")
+                            .withBody("{\"keys\":[]}")));
+
+            given().when().get("/oidc/jwks").then().statusCode(200);
+            given()
+                    .when()
+                    .queryParam("a", "b")
+                    .header("Authorization", "Basic Zm9vOmJhcg==")
+                    .cookie("session", "value")
+                    .get("/oidc/jwks")
+                    .then()
+                    .assertThat()
+                    .statusCode(200)
+                    .body(equalTo("{\"keys\":[]}"));
+
+            HYDRA_MOCK_SERVER.verify(exactly(1), getRequestedFor(urlEqualTo("/.well-known/jwks.json")));
+        }
+
+        private void stubOpenIdConfiguration(String body) {
+            HYDRA_MOCK_SERVER.stubFor(get(urlEqualTo("/.well-known/openid-configuration"))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withHeader("Content-Type", "application/json; charset=UTF-8")
+                            .withBody(body)));
+        }
+
+        private ValidatableResponse getOpenIdConfiguration(String url) {
+            return given().when().get(url).then().assertThat().statusCode(200);
+        }
+    }
 }
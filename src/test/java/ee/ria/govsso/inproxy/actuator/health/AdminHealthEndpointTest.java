@@ -0,0 +1,81 @@
+package ee.ria.govsso.inproxy.actuator.health;
+
+import ee.ria.govsso.inproxy.service.TokenRequestAllowedIpAddressesService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+
+class AdminHealthEndpointTest extends HealthEndpointTest {
+
+    public AdminHealthEndpointTest(
+            @Autowired TokenRequestAllowedIpAddressesService tokenRequestAllowedIpAddressesService) {
+        super(tokenRequestAllowedIpAddressesService);
+    }
+
+    @Test
+    void health_WhenAdminRequestSucceeds_AdminUp() {
+        mockAdminHealthIndicatorUp();
+
+        given()
+                .when()
+                .get("/actuator/health")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .body("components.admin.status", equalTo("UP"))
+                .body("components.admin.details.lastRequestSuccessful", equalTo(true))
+                .body("components.admin.details.source", equalTo("ADMIN"))
+                .body("components.admin.details.fetchedAt", notNullValue());
+    }
+
+    @Test
+    void health_WhenAdminRequestFailsButAllowedIpAddressesNotStale_AdminUp() {
+        mockAdminHealthIndicatorUp();
+        mockAdminRequestFails();
+
+        given()
+                .when()
+                .get("/actuator/health")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .body("components.admin.status", equalTo("UP"))
+                .body("components.admin.details.lastRequestSuccessful", equalTo(false))
+                .body("components.admin.details.source", equalTo("ADMIN"))
+                .body("components.admin.details.fetchedAt", notNullValue());
+
+        assertErrorIsLogged("Unable to update the list of allowed IP-address ranges: 400 Bad Request from GET https://admin.localhost:17442/clients/tokenrequestallowedipaddresses");
+    }
+
+    @Test
+    void health_WhenAdminRequestsFailUntilAllowedIpAddressesStale_AdminUpThenDown() {
+        mockAdminHealthIndicatorUp();
+        mockAdminRequestFails();
+        given()
+                .when()
+                .get("/actuator/health")
+                .then()
+                .assertThat()
+                .body("components.admin.status", equalTo("UP"));
+
+        mockAllowedIpAddressesStale();
+        mockAdminRequestFails();
+
+        given()
+                .when()
+                .get("/actuator/health")
+                .then()
+                .assertThat()
+                .statusCode(503)
+                .body("components.admin.status", equalTo("DOWN"))
+                .body("components.admin.details.lastRequestSuccessful", equalTo(false))
+                .body("components.admin.details.source", equalTo("FILE"))
+                .body("components.admin.details.ageInSeconds", greaterThanOrEqualTo(86400));
+
+        assertErrorIsLogged("Unable to update the list of allowed IP-address ranges: 400 Bad Request from GET https://admin.localhost:17442/clients/tokenrequestallowedipaddresses");
+    }
+}
@@ -1,11 +1,18 @@
 package ee.ria.govsso.inproxy.actuator.health;
 
 import ee.ria.govsso.inproxy.BaseTest;
+import ee.ria.govsso.inproxy.configuration.properties.AdminConfigurationProperties;
 import ee.ria.govsso.inproxy.service.TokenRequestAllowedIpAddressesService;
 import io.restassured.response.ValidatableResponse;
 import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ActiveProfiles;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.Set;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
@@ -21,18 +28,37 @@ abstract class HealthEndpointTest extends BaseTest {
 
     private final TokenRequestAllowedIpAddressesService tokenRequestAllowedIpAddressesService;
 
+    @Autowired
+    private AdminConfigurationProperties adminConfigurationProperties;
+
     void mockAdminHealthIndicatorUp() {
         ADMIN_MOCK_SERVER.stubFor(get(urlPathEqualTo("/clients/tokenrequestallowedipaddresses"))
                 .willReturn(aResponse()
                         .withStatus(200)));
-        tokenRequestAllowedIpAddressesService.updateAllowedIpsTask();
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
     }
 
+    // Admin health indicator stays UP after failed requests until the list of allowed IP-address ranges is older than
+    // the maximum staleness
     void mockAdminHealthIndicatorDown() {
+        mockAllowedIpAddressesStale();
+        mockAdminRequestFails();
+    }
+
+    void mockAdminRequestFails() {
         ADMIN_MOCK_SERVER.stubFor(get(urlPathEqualTo("/clients/tokenrequestallowedipaddresses"))
                 .willReturn(aResponse()
                         .withStatus(400)));
-        tokenRequestAllowedIpAddressesService.updateAllowedIpsTask();
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
+    }
+
+    // Loads the list from a file last modified a day ago, as if it had not been fetched from the admin service since
+    @SneakyThrows
+    void mockAllowedIpAddressesStale() {
+        File file = new File(adminConfigurationProperties.tokenRequestAllowedIpAddressesStoragePath());
+        Files.writeString(file.toPath(), "{\"client-a\":[\"127.0.0.1\"]}");
+        file.setLastModified(Instant.now().minus(Duration.ofDays(1)).toEpochMilli());
+        tokenRequestAllowedIpAddressesService.loadIpAddressesFromFileIgnoringExceptions();
     }
 
     void assertCertificatesHealthUp(ValidatableResponse response, String prefix) {
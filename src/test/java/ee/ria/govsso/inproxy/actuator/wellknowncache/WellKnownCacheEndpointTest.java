@@ -0,0 +1,138 @@
+package ee.ria.govsso.inproxy.actuator.wellknowncache;
+
+import ee.ria.govsso.inproxy.BaseTest;
+import io.restassured.http.ContentType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.TestPropertySource;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.exactly;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static io.restassured.RestAssured.given;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.notNullValue;
+
+@ActiveProfiles({"tara"})
+@TestPropertySource(properties = {
+        "test.hydra-well-known-cache=30m,10MB,1m,10m,5s,10,1d",
+        "tara-govsso-inproxy.well-known-cache.warm-up-on-startup=true"})
+class WellKnownCacheEndpointTest extends BaseTest {
+
+    private static final String JWKS_V1 = "{\"keys\":[{\"kid\":\"key-1\"}]}";
+    private static final String JWKS_V2 = "{\"keys\":[{\"kid\":\"key-2\"}]}";
+    private static final String JWKS_KEY = "/.well-known/jwks.json";
+
+    @BeforeEach
+    void purgeCache() {
+        given().when().delete("/actuator/wellknowncache/hydra-well-known").then().statusCode(200);
+    }
+
+    @Test
+    void wellKnownCache_responseCached_ListsEntry() {
+        stubJwks(JWKS_V1);
+        getJwks(JWKS_V1);
+        getJwks(JWKS_V1);
+
+        given()
+                .when()
+                .get("/actuator/wellknowncache/hydra-well-known")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .body("size()", equalTo(1))
+                .body("[0].key", equalTo(JWKS_KEY))
+                .body("[0].size", greaterThan(JWKS_V1.length()))
+                .body("[0].ageInSeconds", equalTo(0))
+                .body("[0].hits", equalTo(1))
+                .body("[0].etag", notNullValue());
+        given()
+                .when()
+                .get("/actuator/wellknowncache")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .body("hydra-well-known[0].key", equalTo(JWKS_KEY));
+    }
+
+    @Test
+    void wellKnownCache_purgeKey_ResponseRequestedFromUpstream() {
+        stubJwks(JWKS_V1);
+        getJwks(JWKS_V1);
+
+        given()
+                .when()
+                .queryParam("key", JWKS_KEY)
+                .delete("/actuator/wellknowncache/hydra-well-known")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .body("entries", equalTo(1));
+
+        getJwks(JWKS_V1);
+        HYDRA_MOCK_SERVER.verify(exactly(2), getRequestedFor(urlEqualTo(JWKS_KEY)));
+    }
+
+    @Test
+    void wellKnownCache_warmRoute_CachedResponseReplaced() {
+        stubJwks(JWKS_V1);
+        getJwks(JWKS_V1);
+        stubJwks(JWKS_V2);
+
+        given()
+                .when()
+                .contentType(ContentType.JSON)
+                .body("{}")
+                .post("/actuator/wellknowncache/hydra-well-known")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .body("entries", equalTo(1));
+
+        getJwks(JWKS_V2);
+        HYDRA_MOCK_SERVER.verify(exactly(2), getRequestedFor(urlEqualTo(JWKS_KEY)));
+    }
+
+    @Test
+    void wellKnownCache_unknownRoute_RespondsWith404() {
+        given()
+                .when()
+                .get("/actuator/wellknowncache/unknown")
+                .then()
+                .assertThat()
+                .statusCode(404);
+    }
+
+    @Test
+    void health_warmUpOnStartupEnabled_WellKnownCacheUp() {
+        given()
+                .when()
+                .get("/actuator/health")
+                .then()
+                .assertThat()
+                .body("components.wellKnownCache.status", equalTo("UP"))
+                .body("components.wellKnownCache.details.warmedUp.hydra-well-known", equalTo(true));
+    }
+
+    private void stubJwks(String body) {
+        HYDRA_MOCK_SERVER.stubFor(get(urlEqualTo(JWKS_KEY))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json; charset=UTF-8")
+                        .withBody(body)));
+    }
+
+    private void getJwks(String expectedBody) {
+        given()
+                .when()
+                .get("/oidc/jwks")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .body(equalTo(expectedBody));
+    }
+}
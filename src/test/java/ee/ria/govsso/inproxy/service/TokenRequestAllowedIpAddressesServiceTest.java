@@ -4,22 +4,36 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import ee.ria.govsso.inproxy.BaseTest;
 import ee.ria.govsso.inproxy.configuration.properties.AdminConfigurationProperties;
+import ee.ria.govsso.inproxy.service.ipaddress.AllowedIpAddressSnapshot;
+import ee.ria.govsso.inproxy.service.ipaddress.AllowedIpAddressSnapshot.Source;
+import com.github.tomakehurst.wiremock.client.WireMock;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.context.TestPropertySource;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
 
 import java.io.File;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static ch.qos.logback.classic.Level.INFO;
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.lessThanOrExactly;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
 
 class TokenRequestAllowedIpAddressesServiceTest extends BaseTest {
 
@@ -29,6 +43,8 @@ class TokenRequestAllowedIpAddressesServiceTest extends BaseTest {
     private ObjectMapper objectMapper;
     @Autowired
     private AdminConfigurationProperties adminConfigurationProperties;
+    @Autowired
+    private MeterRegistry meterRegistry;
 
     @Test
     void admin_TokenRequestAllowedIpAddressesRequestRespondsWith200_AllowedIpAddressesAreStoredInMapAndSavedToFile() throws IOException {
@@ -38,7 +54,7 @@ class TokenRequestAllowedIpAddressesServiceTest extends BaseTest {
                         .withHeader("Content-Type", "application/json; charset=UTF-8")
                         .withBody("{\"client-a\":[\"127.0.0.1\"]}")));
 
-        tokenRequestAllowedIpAddressesService.updateAllowedIpsTask();
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
 
         boolean isTokenRequestAllowed = tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-a", "127.0.0.1");
         Map<String, List<String>> tokenRequestAllowedIpAddresses = objectMapper.readValue(new File(adminConfigurationProperties.tokenRequestAllowedIpAddressesStoragePath()), new TypeReference<>() {
@@ -57,7 +73,7 @@ class TokenRequestAllowedIpAddressesServiceTest extends BaseTest {
 
         createTokenRequestAllowedIpAddressesFile();
         tokenRequestAllowedIpAddressesService.loadIpAddressesFromFileIgnoringExceptions();
-        tokenRequestAllowedIpAddressesService.updateAllowedIpsTask();
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
 
         assertErrorIsLogged("Unable to update the list of allowed IP-address ranges: 404 Not Found from GET https://admin.localhost:17442/clients/tokenrequestallowedipaddresses");
         boolean isTokenRequestAllowed = tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-from-file", "1.1.1.1");
@@ -69,6 +85,25 @@ class TokenRequestAllowedIpAddressesServiceTest extends BaseTest {
         assertMessageWithMarkerIsLoggedOnce(TokenRequestAllowedIpAddressesService.class, INFO, "ADMIN response: 404", "http.response.status_code=404, http.response.body.content=\"\"");
     }
 
+    @Test
+    void admin_TokenRequestAllowedIpAddressesRequestTimesOut_IpAddressesAreNotChanged() throws IOException {
+        ADMIN_MOCK_SERVER.stubFor(get(urlPathEqualTo("/clients/tokenrequestallowedipaddresses"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json; charset=UTF-8")
+                        .withBody("{\"client-timeout\":[\"1.1.1.1\"]}")
+                        .withFixedDelay(6000)));
+
+        createTokenRequestAllowedIpAddressesFile();
+        tokenRequestAllowedIpAddressesService.loadIpAddressesFromFileIgnoringExceptions();
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
+
+        assertErrorIsLogged("Unable to update the list of allowed IP-address ranges: No response from TARA/GovSSO Admin within 5000 ms");
+        assertThat(tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-from-file", "1.1.1.1"), is(true));
+        assertThat(tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-timeout", "1.1.1.1"), is(false));
+        assertThat(tokenRequestAllowedIpAddressesService.isLastRequestToAdminSuccessful(), is(false));
+    }
+
     @Test
     void admin_TokenRequestAllowedIpAddressesRequestRespondsWithEmptyBody_EmptyResponseIsStoredInMapAndSavedToFile() throws IOException {
         ADMIN_MOCK_SERVER.stubFor(get(urlPathEqualTo("/clients/tokenrequestallowedipaddresses"))
@@ -77,18 +112,168 @@ class TokenRequestAllowedIpAddressesServiceTest extends BaseTest {
                         .withHeader("Content-Type", "application/json; charset=UTF-8")));
 
         createTokenRequestAllowedIpAddressesFile();
-        tokenRequestAllowedIpAddressesService.updateAllowedIpsTask();
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
 
         boolean isTokenRequestAllowed = tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-from-file", "1.1.1.1");
         Map<String, List<String>> tokenRequestAllowedIpAddressesFromFile = objectMapper.readValue(new File(adminConfigurationProperties.tokenRequestAllowedIpAddressesStoragePath()), new TypeReference<>() {
         });
         assertThat(tokenRequestAllowedIpAddressesFromFile.isEmpty(), is(true));
-        assertThat(tokenRequestAllowedIpAddressesService.tokenRequestAllowedIpAddresses.isEmpty(), is(true));
+        assertThat(tokenRequestAllowedIpAddressesService.getSnapshot().ipAddresses().isEmpty(), is(true));
         assertThat(isTokenRequestAllowed, is(false));
         assertMessageWithMarkerIsLoggedOnce(TokenRequestAllowedIpAddressesService.class, INFO, "ADMIN request", "http.request.method=GET, url.full=https://admin.localhost:17442//clients/tokenrequestallowedipaddresses");
         assertMessageWithMarkerIsLoggedOnce(TokenRequestAllowedIpAddressesService.class, INFO, "ADMIN response: 200", "http.response.status_code=200, http.response.body.content={}");
     }
 
+    @Test
+    void admin_TokenRequestAllowedIpAddressesRequestRespondsWith304_AllowedIpAddressesAreNotChanged() throws IOException {
+        ADMIN_MOCK_SERVER.stubFor(get(urlPathEqualTo("/clients/tokenrequestallowedipaddresses"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json; charset=UTF-8")
+                        .withHeader("ETag", "\"etag-1\"")
+                        .withBody("{\"client-etag\":[\"2.2.2.2\"]}")));
+        ADMIN_MOCK_SERVER.stubFor(get(urlPathEqualTo("/clients/tokenrequestallowedipaddresses"))
+                .withHeader("If-None-Match", WireMock.equalTo("\"etag-1\""))
+                .willReturn(aResponse()
+                        .withStatus(304)
+                        .withHeader("ETag", "\"etag-1\"")));
+
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
+        AllowedIpAddressSnapshot snapshot = tokenRequestAllowedIpAddressesService.getSnapshot();
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
+
+        boolean isTokenRequestAllowed = tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-etag", "2.2.2.2");
+        Map<String, List<String>> tokenRequestAllowedIpAddressesFromFile = objectMapper.readValue(new File(adminConfigurationProperties.tokenRequestAllowedIpAddressesStoragePath()), new TypeReference<>() {
+        });
+        assertThat(isTokenRequestAllowed, is(true));
+        assertThat(tokenRequestAllowedIpAddressesService.getSnapshot().generation(), equalTo(snapshot.generation()));
+        assertThat(tokenRequestAllowedIpAddressesService.getSnapshot().index(), sameInstance(snapshot.index()));
+        assertThat(tokenRequestAllowedIpAddressesService.getSnapshot().source(), equalTo(Source.ADMIN));
+        assertThat(tokenRequestAllowedIpAddressesFromFile.get("client-etag").get(0), equalTo("2.2.2.2"));
+        ADMIN_MOCK_SERVER.verify(1, getRequestedFor(urlPathEqualTo("/clients/tokenrequestallowedipaddresses"))
+                .withHeader("If-None-Match", WireMock.equalTo("\"etag-1\"")));
+        assertMessageWithMarkerIsLoggedOnce(TokenRequestAllowedIpAddressesService.class, INFO, "ADMIN response: 200", "http.response.status_code=200, http.response.body.content={\"client-etag\":[\"2.2.2.2\"]}");
+        assertMessageWithMarkerIsLoggedOnce(TokenRequestAllowedIpAddressesService.class, INFO, "ADMIN response: 304", "http.response.status_code=304");
+    }
+
+    @Test
+    void admin_TokenRequestAllowedIpAddressesRequestRespondsWithUnchangedBody_AllowedIpAddressesAreNotRebuilt() {
+        ADMIN_MOCK_SERVER.stubFor(get(urlPathEqualTo("/clients/tokenrequestallowedipaddresses"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json; charset=UTF-8")
+                        .withBody("{\"client-unchanged\":[\"3.3.3.3\"]}")));
+
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
+        AllowedIpAddressSnapshot snapshot = tokenRequestAllowedIpAddressesService.getSnapshot();
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
+
+        boolean isTokenRequestAllowed = tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-unchanged", "3.3.3.3");
+        assertThat(isTokenRequestAllowed, is(true));
+        assertThat(tokenRequestAllowedIpAddressesService.getSnapshot().generation(), equalTo(snapshot.generation()));
+        assertThat(tokenRequestAllowedIpAddressesService.getSnapshot().index(), sameInstance(snapshot.index()));
+        assertThat(tokenRequestAllowedIpAddressesService.getSnapshot().source(), equalTo(Source.ADMIN));
+    }
+
+    @Test
+    void isTokenRequestAllowed_RepeatedRequests_DecisionIsCachedUntilAllowedIpAddressesChange() {
+        ADMIN_MOCK_SERVER.stubFor(get(urlPathEqualTo("/clients/tokenrequestallowedipaddresses"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json; charset=UTF-8")
+                        .withBody("{\"client-cached\":[\"4.4.4.0/24\"]}")));
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
+        double hitCount = getDecisionCacheGets("hit");
+        double missCount = getDecisionCacheGets("miss");
+
+        boolean firstDecision = tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-cached", "4.4.4.4");
+        boolean secondDecision = tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-cached", "4.4.4.4");
+
+        assertThat(firstDecision, is(true));
+        assertThat(secondDecision, is(true));
+        assertThat(getDecisionCacheGets("miss"), equalTo(missCount + 1));
+        assertThat(getDecisionCacheGets("hit"), equalTo(hitCount + 1));
+
+        ADMIN_MOCK_SERVER.stubFor(get(urlPathEqualTo("/clients/tokenrequestallowedipaddresses"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json; charset=UTF-8")
+                        .withBody("{\"client-cached\":[\"5.5.5.5\"]}")));
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
+
+        assertThat(tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-cached", "4.4.4.4"), is(false));
+        assertThat(tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-cached", "5.5.5.5"), is(true));
+    }
+
+    @Test
+    void isTokenRequestAllowed_UnknownClient_DecisionIsNotCached() {
+        ADMIN_MOCK_SERVER.stubFor(get(urlPathEqualTo("/clients/tokenrequestallowedipaddresses"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json; charset=UTF-8")
+                        .withBody("{\"client-cached\":[\"4.4.4.0/24\"]}")));
+        tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
+        double hitCount = getDecisionCacheGets("hit");
+        double missCount = getDecisionCacheGets("miss");
+
+        boolean firstDecision = tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-unknown", "4.4.4.4");
+        boolean secondDecision = tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-unknown", "4.4.4.4");
+
+        assertThat(firstDecision, is(false));
+        assertThat(secondDecision, is(false));
+        assertThat(getDecisionCacheGets("miss"), equalTo(missCount));
+        assertThat(getDecisionCacheGets("hit"), equalTo(hitCount));
+    }
+
+    @Test
+    void admin_ChangeFeedSendsEvent_AllowedIpAddressesAreRefreshed() throws InterruptedException {
+        ADMIN_MOCK_SERVER.stubFor(get(urlPathEqualTo("/clients/tokenrequestallowedipaddresses"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "application/json; charset=UTF-8")
+                        .withBody("{\"client-feed\":[\"6.6.6.6\"]}")));
+        ADMIN_MOCK_SERVER.stubFor(get(urlPathEqualTo("/clients/tokenrequestallowedipaddresses/changes"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withHeader("Content-Type", "text/event-stream")
+                        .withBody("event: changed\ndata: {}\n\n")));
+
+        Disposable changeFeed = tokenRequestAllowedIpAddressesService.followChangeFeed().subscribe();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-feed", "6.6.6.6")
+                    && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        } finally {
+            changeFeed.dispose();
+        }
+
+        assertThat(tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-feed", "6.6.6.6"), is(true));
+        ADMIN_MOCK_SERVER.verify(getRequestedFor(urlPathEqualTo("/clients/tokenrequestallowedipaddresses/changes"))
+                .withHeader("Accept", WireMock.equalTo("text/event-stream")));
+    }
+
+    @Test
+    void refreshAllowedIpAddresses_ConcurrentRefreshes_RequestsAreMadeOneAtATime() {
+        ADMIN_MOCK_SERVER.stubFor(get(urlPathEqualTo("/clients/tokenrequestallowedipaddresses"))
+                .willReturn(aResponse()
+                        .withStatus(200)
+                        .withFixedDelay(200)
+                        .withHeader("Content-Type", "application/json; charset=UTF-8")
+                        .withBody("{\"client-serialized\":[\"7.7.7.7\"]}")));
+
+        Mono.when(
+                tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses(),
+                tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses(),
+                tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses()
+        ).block(Duration.ofSeconds(5));
+
+        assertThat(tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-serialized", "7.7.7.7"), is(true));
+        // The first request and a single request for the refreshes requested while it was in progress
+        ADMIN_MOCK_SERVER.verify(lessThanOrExactly(2), getRequestedFor(urlPathEqualTo("/clients/tokenrequestallowedipaddresses")));
+    }
+
     @Test
     void admin_AllowedIpAddressesMapIsSetFromFile_TokenRequestIsAllowed() throws IOException {
         createTokenRequestAllowedIpAddressesFile();
@@ -97,12 +282,46 @@ class TokenRequestAllowedIpAddressesServiceTest extends BaseTest {
 
         boolean isTokenRequestAllowed = tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-from-file", "1.1.1.1");
         assertThat(isTokenRequestAllowed, is(true));
+        assertThat(tokenRequestAllowedIpAddressesService.getSnapshot().source(), equalTo(Source.FILE));
         assertMessageIsNotLogged(TokenRequestAllowedIpAddressesService.class, "ADMIN request");
     }
 
+    private double getDecisionCacheGets(String result) {
+        return meterRegistry.get("cache.gets")
+                .tag("cache", "tokenRequestAllowedIpAddressDecisions")
+                .tag("result", result)
+                .functionCounter()
+                .count();
+    }
+
     private void createTokenRequestAllowedIpAddressesFile() throws IOException {
         Map<String, List<String>> tokenRequestAllowedIpAddresses = new HashMap<>();
         tokenRequestAllowedIpAddresses.put("client-from-file", List.of("1.1.1.1"));
         objectMapper.writeValue(new File(adminConfigurationProperties.tokenRequestAllowedIpAddressesStoragePath()), tokenRequestAllowedIpAddresses);
     }
+
+    @Nested
+    @TestPropertySource(properties = "tara-govsso-inproxy.admin.token-request-allowed-ip-addresses-decision-cache-max-size=0")
+    class DecisionCacheDisabledTests extends BaseTest {
+
+        @Autowired
+        private TokenRequestAllowedIpAddressesService tokenRequestAllowedIpAddressesService;
+        @Autowired
+        private MeterRegistry meterRegistry;
+
+        @Test
+        void isTokenRequestAllowed_DecisionCacheMaxSizeZero_DecisionIsMadeWithoutCache() {
+            ADMIN_MOCK_SERVER.stubFor(get(urlPathEqualTo("/clients/tokenrequestallowedipaddresses"))
+                    .willReturn(aResponse()
+                            .withStatus(200)
+                            .withHeader("Content-Type", "application/json; charset=UTF-8")
+                            .withBody("{\"client-cached\":[\"4.4.4.0/24\"]}")));
+            tokenRequestAllowedIpAddressesService.refreshAllowedIpAddresses().block();
+
+            assertThat(tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-cached", "4.4.4.4"), is(true));
+            assertThat(tokenRequestAllowedIpAddressesService.isTokenRequestAllowed("client-cached", "5.5.5.5"), is(false));
+            assertThat(meterRegistry.find("cache.gets").tag("cache", "tokenRequestAllowedIpAddressDecisions").meters(),
+                    empty());
+        }
+    }
 }
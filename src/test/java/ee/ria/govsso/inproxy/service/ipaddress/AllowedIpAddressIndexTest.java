@@ -0,0 +1,125 @@
+package ee.ria.govsso.inproxy.service.ipaddress;
+
+import inet.ipaddr.IPAddressString;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AllowedIpAddressIndexTest {
+
+    private static final String CLIENT_ID = "client-a";
+
+    private static final List<String> SOURCE_ADDRESSES = List.of(
+            "0.0.0.0", "1.1.1.1", "1.2.3.3", "1.2.3.4", "1.2.3.5", "1.2.3.100", "1.2.3.101", "1.2.3.255", "1.2.4.0",
+            "1.9.3.4", "1.9.3.5", "10.0.0.1", "10.255.255.255", "11.0.0.0", "127.0.0.1", "172.16.5.4",
+            "192.168.0.1", "255.255.255.255", "::", "::1", "2001:db8::1", "2001:db8:ffff::1", "2001:db9::",
+            "fe80::1");
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "1.2.3.4",
+            "1.2.3.*",
+            "1.2.3.0/24",
+            "1.2.3.4/24",
+            "1.2.3.0-100",
+            "1.2.3.5-255",
+            "10.0.0.0/8",
+            "1.*.3.4",
+            "1-9.*.3.4-5",
+            "*.*.*.*",
+            "0.0.0.0/0",
+            "*",
+            "2001:db8::/32",
+            "2001:db8::1",
+            "::1",
+            "fe80::1-ffff",
+            "::/0"
+    })
+    void isAllowed_singleRange_matchesIpAddressContains(String range) {
+        AllowedIpAddressIndex index = AllowedIpAddressIndex.compile(Map.of(CLIENT_ID, List.of(range)));
+
+        for (String sourceAddress : SOURCE_ADDRESSES) {
+            IPAddressString rangeString = new IPAddressString(range);
+            boolean expected = rangeString.isAllAddresses()
+                    || rangeString.getAddress().contains(new IPAddressString(sourceAddress).getAddress());
+            assertEquals(expected, index.isAllowed(CLIENT_ID, bytes(sourceAddress)),
+                    "range " + range + ", source address " + sourceAddress);
+        }
+    }
+
+    @Test
+    void isAllowed_overlappingRanges_matchesAnyRange() {
+        AllowedIpAddressIndex index = AllowedIpAddressIndex.compile(Map.of(CLIENT_ID,
+                List.of("1.2.3.4", "1.2.0.0/16", "1.2.3.128/25", "192.168.0.1", "2001:db8::/32", "2001:db8::1")));
+
+        assertTrue(index.isAllowed(CLIENT_ID, bytes("1.2.3.4")));
+        assertTrue(index.isAllowed(CLIENT_ID, bytes("1.2.255.255")));
+        assertTrue(index.isAllowed(CLIENT_ID, bytes("192.168.0.1")));
+        assertTrue(index.isAllowed(CLIENT_ID, bytes("2001:db8:1::")));
+        assertFalse(index.isAllowed(CLIENT_ID, bytes("1.3.0.0")));
+        assertFalse(index.isAllowed(CLIENT_ID, bytes("192.168.0.2")));
+        assertFalse(index.isAllowed(CLIENT_ID, bytes("2001:db9::")));
+    }
+
+    @Test
+    void isAllowed_ipv4MappedIpv6Address_matchedAgainstIpv4Ranges() {
+        AllowedIpAddressIndex index = AllowedIpAddressIndex.compile(Map.of(CLIENT_ID, List.of("1.2.3.0/24")));
+
+        assertTrue(index.isAllowed(CLIENT_ID, bytes("::ffff:1.2.3.4")));
+        assertFalse(index.isAllowed(CLIENT_ID, bytes("::ffff:1.2.4.4")));
+        assertFalse(index.isAllowed(CLIENT_ID, bytes("::1.2.3.4")));
+    }
+
+    @Test
+    void isAllowed_invalidRange_ignoredAndOtherRangesStillMatch() {
+        AllowedIpAddressIndex index = AllowedIpAddressIndex.compile(Map.of(CLIENT_ID,
+                List.of("not-an-ip-address", "1.2.3.256", "1.2.3.4")));
+
+        assertTrue(index.isAllowed(CLIENT_ID, bytes("1.2.3.4")));
+        assertFalse(index.isAllowed(CLIENT_ID, bytes("1.2.3.5")));
+    }
+
+    @Test
+    void isAllowed_unknownClient_notAllowed() {
+        AllowedIpAddressIndex index = AllowedIpAddressIndex.compile(Map.of(CLIENT_ID, List.of("*")));
+
+        assertFalse(index.isAllowed("client-b", bytes("1.2.3.4")));
+    }
+
+    @Test
+    void isAllowed_clientWithEmptyRanges_notAllowed() {
+        AllowedIpAddressIndex index = AllowedIpAddressIndex.compile(Map.of(CLIENT_ID, List.of()));
+
+        assertFalse(index.isAllowed(CLIENT_ID, bytes("1.2.3.4")));
+        assertFalse(index.isAllowed(CLIENT_ID, bytes("::1")));
+    }
+
+    @Test
+    void compile_emptyMap_returnsEmptyIndex() {
+        AllowedIpAddressIndex index = AllowedIpAddressIndex.compile(Map.of());
+
+        assertEquals(0, index.clientCount());
+        assertFalse(index.isAllowed(CLIENT_ID, bytes("1.2.3.4")));
+    }
+
+    @Test
+    void compile_nestedPrefixes_unreachableNodesRemoved() {
+        AllowedIpAddressIndex index = AllowedIpAddressIndex.compile(Map.of(CLIENT_ID,
+                List.of("10.1.2.3", "10.1.0.0/16", "10.0.0.0/8")));
+
+        IpAddressPrefixTrie ipv4Trie = index.rangesByClientId().get(CLIENT_ID).ipv4Trie();
+        assertEquals(2 * 8, ipv4Trie.children().length);
+        assertTrue(ipv4Trie.contains(bytes("10.200.0.1")));
+    }
+
+    private static byte[] bytes(String address) {
+        return new IPAddressString(address).getAddress().getBytes();
+    }
+}
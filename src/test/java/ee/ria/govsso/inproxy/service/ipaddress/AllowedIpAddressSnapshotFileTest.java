@@ -0,0 +1,104 @@
+package ee.ria.govsso.inproxy.service.ipaddress;
+
+import ee.ria.govsso.inproxy.service.ipaddress.AllowedIpAddressSnapshot.Source;
+import inet.ipaddr.IPAddressString;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AllowedIpAddressSnapshotFileTest {
+
+    private static final Map<String, List<String>> IP_ADDRESSES = Map.of(
+            "client-a", List.of("1.2.3.4", "10.0.0.0/8", "1-9.*.3.4-5", "2001:db8::/32"),
+            "client-b", List.of("*"),
+            "client-c", List.of());
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void read_writtenSnapshot_restoresSnapshot() throws IOException {
+        Path path = tempDir.resolve("ipaddresses.bin");
+        AllowedIpAddressSnapshot snapshot = AllowedIpAddressSnapshot.EMPTY.next(Source.ADMIN,
+                Instant.ofEpochMilli(1700000000123L),
+                IP_ADDRESSES,
+                AllowedIpAddressIndex.compile(IP_ADDRESSES),
+                "\"etag-1\"",
+                new byte[]{1, 2, 3});
+
+        AllowedIpAddressSnapshotFile.write(path, snapshot);
+        AllowedIpAddressSnapshot restored = AllowedIpAddressSnapshotFile.read(path);
+
+        assertEquals(Source.FILE, restored.source());
+        assertEquals(snapshot.fetchedAt(), restored.fetchedAt());
+        assertEquals(snapshot.eTag(), restored.eTag());
+        assertArrayEquals(snapshot.contentHash(), restored.contentHash());
+        assertEquals(IP_ADDRESSES, restored.ipAddresses());
+        assertEquals(3, restored.index().clientCount());
+        assertEquals(5, restored.index().rangeCount());
+        assertTrue(restored.index().isAllowed("client-a", bytes("1.2.3.4")));
+        assertTrue(restored.index().isAllowed("client-a", bytes("10.20.30.40")));
+        assertTrue(restored.index().isAllowed("client-a", bytes("5.100.3.5")));
+        assertTrue(restored.index().isAllowed("client-a", bytes("2001:db8::1")));
+        assertFalse(restored.index().isAllowed("client-a", bytes("1.2.4.5")));
+        assertTrue(restored.index().isAllowed("client-b", bytes("::1")));
+        assertFalse(restored.index().isAllowed("client-c", bytes("1.2.3.4")));
+    }
+
+    @Test
+    void read_emptySnapshot_restoresEmptySnapshot() throws IOException {
+        Path path = tempDir.resolve("ipaddresses.bin");
+
+        AllowedIpAddressSnapshotFile.write(path, AllowedIpAddressSnapshot.EMPTY);
+        AllowedIpAddressSnapshot restored = AllowedIpAddressSnapshotFile.read(path);
+
+        assertNull(restored.fetchedAt());
+        assertNull(restored.eTag());
+        assertNull(restored.contentHash());
+        assertTrue(restored.ipAddresses().isEmpty());
+        assertEquals(0, restored.index().clientCount());
+    }
+
+    @Test
+    void read_corruptedSnapshot_throwsIOException() throws IOException {
+        Path path = tempDir.resolve("ipaddresses.bin");
+        AllowedIpAddressSnapshotFile.write(path, AllowedIpAddressSnapshot.EMPTY.next(Source.ADMIN,
+                Instant.now(), IP_ADDRESSES, AllowedIpAddressIndex.compile(IP_ADDRESSES), null, null));
+        byte[] content = Files.readAllBytes(path);
+        content[content.length / 2] ^= 1;
+        Files.write(path, content);
+
+        IOException ex = assertThrows(IOException.class, () -> AllowedIpAddressSnapshotFile.read(path));
+
+        assertThat(ex.getMessage(), containsString("checksum mismatch"));
+    }
+
+    @Test
+    void read_notSnapshotFile_throwsIOException() throws IOException {
+        Path path = tempDir.resolve("ipaddresses.bin");
+        Files.writeString(path, "{\"client-a\":[\"1.2.3.4\"]}");
+
+        IOException ex = assertThrows(IOException.class, () -> AllowedIpAddressSnapshotFile.read(path));
+
+        assertEquals("Not an allowed IP-address ranges snapshot file", ex.getMessage());
+    }
+
+    private static byte[] bytes(String address) {
+        return new IPAddressString(address).getAddress().getBytes();
+    }
+}
@@ -0,0 +1,39 @@
+package ee.ria.govsso.inproxy.wellknown.cache;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class WellKnownKeySetTest {
+
+    private static final byte[] JWKS = "{\"keys\":[{\"kid\":\"key-1\"},{\"kty\":\"RSA\"}]}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void keyIds_jsonWebKeySet_returnsKeyIdsOrWholeKeys() {
+        assertEquals(Set.of("key-1", "{\"kty\":\"RSA\"}"),
+                WellKnownKeySet.keyIds(HttpStatus.OK, headers("application/jwk-set+json"), JWKS));
+    }
+
+    @Test
+    void keyIds_invalidContentType_returnsNull() {
+        assertNull(WellKnownKeySet.keyIds(HttpStatus.OK, headers("application"), JWKS));
+    }
+
+    @Test
+    void keyIds_notJson_returnsNull() {
+        assertNull(WellKnownKeySet.keyIds(HttpStatus.OK, headers("text/plain"), JWKS));
+    }
+
+    private static HttpHeaders headers(String contentType) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.CONTENT_TYPE, contentType);
+        return headers;
+    }
+}
@@ -0,0 +1,69 @@
+package ee.ria.govsso.inproxy.wellknown.cache;
+
+import ee.ria.govsso.inproxy.wellknown.cache.WellKnownResponseCacheGatewayFilterFactory.RouteCacheConfiguration;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WellKnownResponseCacheRegistryTest {
+
+    private final WellKnownResponseCacheRegistry registry = new WellKnownResponseCacheRegistry();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void getOrCreate_unchangedConfiguration_reusesCacheManager() {
+        WellKnownResponseCacheManager first = registry.getOrCreate(config(Duration.ofMinutes(30)),
+                () -> cacheManager(config(Duration.ofMinutes(30))));
+
+        WellKnownResponseCacheManager second = registry.getOrCreate(config(Duration.ofMinutes(30)), () -> {
+            throw new AssertionError("Cache manager must not be created again");
+        });
+
+        assertSame(first, second);
+        assertFalse(Files.exists(snapshotPath()));
+    }
+
+    @Test
+    void getOrCreate_changedConfiguration_closesPreviousCacheManager() {
+        WellKnownResponseCacheManager first = registry.getOrCreate(config(Duration.ofMinutes(30)),
+                () -> cacheManager(config(Duration.ofMinutes(30))));
+
+        WellKnownResponseCacheManager second = registry.getOrCreate(config(Duration.ofMinutes(10)),
+                () -> cacheManager(config(Duration.ofMinutes(10))));
+
+        assertNotSame(first, second);
+        assertSame(second, registry.getCacheManager("hydra-well-known").orElseThrow());
+        // Written when closing, so that the new cache manager could load it
+        assertTrue(Files.exists(snapshotPath()));
+        assertEquals(Duration.ofMinutes(10), second.getConfiguration().getTimeToLive());
+    }
+
+    private WellKnownResponseCacheManager cacheManager(RouteCacheConfiguration config) {
+        return new WellKnownResponseCacheManager(null, config, snapshotPath(), false, new SimpleMeterRegistry());
+    }
+
+    private Path snapshotPath() {
+        return tempDir.resolve("hydra-well-known.bin");
+    }
+
+    private static RouteCacheConfiguration config(Duration timeToLive) {
+        RouteCacheConfiguration config = new RouteCacheConfiguration();
+        config.setRouteId("hydra-well-known");
+        config.setTimeToLive(timeToLive);
+        config.setSize(DataSize.ofMegabytes(10));
+        return config;
+    }
+}
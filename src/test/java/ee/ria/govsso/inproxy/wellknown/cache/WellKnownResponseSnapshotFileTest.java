@@ -0,0 +1,111 @@
+package ee.ria.govsso.inproxy.wellknown.cache;
+
+import ee.ria.govsso.inproxy.wellknown.cache.WellKnownResponseSnapshotFile.LastGoodResponse;
+import ee.ria.govsso.inproxy.wellknown.cache.WellKnownResponseSnapshotFile.Snapshot;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WellKnownResponseSnapshotFileTest {
+
+    private static final Duration TIME_TO_LIVE = Duration.ofMinutes(30);
+    private static final String BODY = "{\"keys\":[]}";
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void read_writtenSnapshot_restoresResponses() throws IOException {
+        Path path = tempDir.resolve("hydra-well-known.bin");
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.CONTENT_TYPE, "application/json");
+        headers.add(HttpHeaders.VARY, "Accept-Language");
+        HttpHeaders varyRequestHeaders = new HttpHeaders();
+        varyRequestHeaders.add(HttpHeaders.ACCEPT_LANGUAGE, "et");
+        long storedAtNanos = System.nanoTime() - TimeUnit.MINUTES.toNanos(5);
+        WellKnownCachedResponse response = new WellKnownCachedResponse(HttpStatus.OK, headers,
+                BODY.getBytes(StandardCharsets.UTF_8), URI.create("lb://hydra/.well-known/jwks.json"),
+                varyRequestHeaders, storedAtNanos, TIME_TO_LIVE, null);
+
+        WellKnownResponseSnapshotFile.write(path, snapshot(response));
+        Snapshot restored = WellKnownResponseSnapshotFile.read(path, TIME_TO_LIVE, null);
+
+        assertEquals(Map.of("/oidc/jwks", "/.well-known/jwks.json"), restored.primaryKeysByRequestPath());
+        assertEquals(1, restored.responses().size());
+        LastGoodResponse lastGood = restored.responses().iterator().next();
+        WellKnownCachedResponse restoredResponse = lastGood.response();
+        assertEquals("/.well-known/jwks.json", lastGood.cacheKey());
+        assertEquals("/.well-known/jwks.json", lastGood.primaryKey());
+        assertEquals(HttpStatus.OK, restoredResponse.response().statusCode());
+        assertEquals(response.response().headers(), restoredResponse.response().headers());
+        assertEquals(BODY, restoredResponse.response().body(DefaultDataBufferFactory.sharedInstance)
+                .toString(StandardCharsets.UTF_8));
+        assertEquals(response.upstreamUri(), restoredResponse.upstreamUri());
+        assertEquals(varyRequestHeaders, restoredResponse.varyRequestHeaders());
+        assertEquals(List.of("accept-language"), restoredResponse.varyHeaders());
+        long ageDifference = restoredResponse.ageNanos(System.nanoTime()) - response.ageNanos(System.nanoTime());
+        assertTrue(Math.abs(ageDifference) < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    void read_responseWithoutUpstreamUri_restoresResponse() throws IOException {
+        Path path = tempDir.resolve("hydra-well-known.bin");
+        WellKnownCachedResponse response = new WellKnownCachedResponse(HttpStatus.MOVED_PERMANENTLY,
+                new HttpHeaders(), new byte[0], null, new HttpHeaders(), System.nanoTime(), TIME_TO_LIVE, null);
+
+        WellKnownResponseSnapshotFile.write(path, snapshot(response));
+        LastGoodResponse restored = WellKnownResponseSnapshotFile.read(path, TIME_TO_LIVE, null).responses().iterator().next();
+
+        assertEquals(HttpStatus.MOVED_PERMANENTLY, restored.response().response().statusCode());
+        assertNull(restored.response().upstreamUri());
+    }
+
+    @Test
+    void read_corruptedSnapshot_throwsIOException() throws IOException {
+        Path path = tempDir.resolve("hydra-well-known.bin");
+        WellKnownCachedResponse response = new WellKnownCachedResponse(HttpStatus.OK, new HttpHeaders(),
+                BODY.getBytes(StandardCharsets.UTF_8), null, new HttpHeaders(), System.nanoTime(), TIME_TO_LIVE, null);
+        WellKnownResponseSnapshotFile.write(path, snapshot(response));
+        byte[] content = Files.readAllBytes(path);
+        content[content.length / 2] ^= 1;
+        Files.write(path, content);
+
+        IOException exception = assertThrows(IOException.class, () -> WellKnownResponseSnapshotFile.read(path, TIME_TO_LIVE, null));
+
+        assertThat(exception.getMessage(), containsString("checksum mismatch"));
+    }
+
+    @Test
+    void read_otherFile_throwsIOException() throws IOException {
+        Path path = tempDir.resolve("hydra-well-known.bin");
+        Files.writeString(path, BODY);
+
+        IOException exception = assertThrows(IOException.class, () -> WellKnownResponseSnapshotFile.read(path, TIME_TO_LIVE, null));
+
+        assertThat(exception.getMessage(), containsString("Not a well-known response snapshot file"));
+    }
+
+    private static Snapshot snapshot(WellKnownCachedResponse response) {
+        return new Snapshot(Map.of("/oidc/jwks", "/.well-known/jwks.json"),
+                List.of(new LastGoodResponse("/.well-known/jwks.json", "/.well-known/jwks.json", response)));
+    }
+}